@@ -187,7 +187,8 @@ public class CameraCalibrator
         if (gw == null)
             return null;
 
-        GraphSolver solver = new CholeskySolver(gw.g, new MinimumDegreeOrdering());
+        CholeskySolver solver = new CholeskySolver(gw.g, new MinimumDegreeOrdering());
+        solver.cacheSymbolic = true;
         //GraphSolver solver = new LMSolver(gw.g, new MinimumDegreeOrdering(), 10e-6, 10e6, 10);
         CholeskySolver.verbose = false;
 
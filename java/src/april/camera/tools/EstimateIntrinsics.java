@@ -85,8 +85,9 @@ public class EstimateIntrinsics implements ParameterListener
         this.td = new TagDetector(tf);
         this.tm = new TagMosaic(tf, 0.0254);
 
-        for (BufferedImage im : images)
-            allDetections.add(td.process(im, new double[] { imwidth/2, imheight/2 }));
+        BatchTagDetector batch = new BatchTagDetector(td, 0);
+        allDetections.addAll(batch.process(images, new double[] { imwidth/2, imheight/2 }));
+        batch.shutdown();
 
         // setup GUI
         setupGUI();
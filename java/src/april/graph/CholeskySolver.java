@@ -1,5 +1,7 @@
 package april.graph;
 
+import java.util.*;
+
 import april.jmat.*;
 import april.jmat.ordering.*;
 import april.util.*;
@@ -15,12 +17,69 @@ public class CholeskySolver implements GraphSolver
 
     public Ordering ordering;
 
+    /** How many threads should linearize the edges and assemble the
+     * normal equations? Zero means one thread per available
+     * processor. The result does not depend on this value, but the
+     * edges' linearize() methods must then be safe to call
+     * concurrently: edges whose numerical Jacobians perturb the
+     * nodes' states in place (such as those used for camera
+     * calibration) require nthreads = 1. **/
+    public int nthreads = 1;
+
+    /** Reuse the symbolic analysis from one iteration to the next:
+     * the ordering, the structure of the permuted normal equations
+     * and that of their Cholesky factor are computed once, and later
+     * iterations only recompute their values, until nodes or edges
+     * are added to the graph (or the ordering is changed). The
+     * solution is the same as without caching. (matrixType is
+     * ignored; the factor is always sparse.) **/
+    public boolean cacheSymbolic = false;
+
+    /** Factor with BlockCholesky, which works on the dense blocks
+     * formed by each pair of connected nodes rather than on
+     * individual entries. This is much faster for large graphs, but
+     * the solution differs from the other methods' by rounding
+     * error. Implies cacheSymbolic. **/
+    public boolean blockCholesky = false;
+
+    /** Worker pool for nthreads != 1, created on demand. **/
+    ParallelFor pool;
+
+    GraphLinearizer linearizer;
+
+    /** The cached symbolic analysis, for cacheSymbolic. **/
+    static class Symbolic
+    {
+        // the linearizer structure and ordering this was computed for.
+        int version;
+        Ordering ordering;
+
+        // row i of P'AP is row perm[i] of A, and row j of A is row
+        // invPerm[j] of P'AP.
+        int perm[], invPerm[];
+
+        // exactly one of these is used, depending on blockCholesky.
+        SparseCholesky chol;
+        BlockCholesky bchol;
+
+        // the position in the factor's values of each of the
+        // linearizer's values, or -1 for those below the diagonal of
+        // P'AP, and of each diagonal entry of P'AP.
+        int scatter[], diag[];
+
+        // the linearizer's values, B, and the step (in the order of
+        // P'AP).
+        double values[], b[], x[];
+    }
+
+    Symbolic symbolic;
+
     Matrix L;
 
     // Consistency Constructor Solver(Graph g)
     public CholeskySolver(Graph g)
     {
-        this(g, new MinimumDegreeOrdering());
+        this(g, new ApproximateMinimumDegreeOrdering());
     }
 
     public CholeskySolver(Graph g, Ordering ordering)
@@ -42,6 +101,50 @@ public class CholeskySolver implements GraphSolver
         return A;
     }
 
+    /** Returns the worker pool appropriate for the current value of
+     * nthreads, or null if we should run on the calling thread. **/
+    ParallelFor getPool()
+    {
+        int n = (nthreads < 1) ? Runtime.getRuntime().availableProcessors() : nthreads;
+        if (n == 1)
+            return null;
+
+        if (pool == null || pool.getNumThreads() != n) {
+            if (pool != null)
+                pool.shutdown();
+            pool = new ParallelFor(n);
+        }
+
+        return pool;
+    }
+
+    // characteristic weight of J'WJ, for useTikhonov. Should be
+    // between lambda_max and lambda_min
+    static final double TIKHONOV_W0 = 1000; // XXX FIXME
+
+    /** Should we condition the matrix, by giving pose zero a weight
+     * to be unchanged? Only if useTikhonov is set and the graph is
+     * not already rooted. **/
+    boolean needsVirtualEdge()
+    {
+        if (!useTikhonov)
+            return false;
+
+        for (GEdge ge : g.edges) {
+            if (ge instanceof GXYTPosEdge)
+                return false;
+        }
+
+        return true;
+    }
+
+    /** The value added to the diagonal of the normal equations
+     * before they are factored. Only LMSolver adds any. **/
+    double getDamping()
+    {
+        return 0;
+    }
+
     public boolean canIterate()
     {
         return true;
@@ -51,66 +154,37 @@ public class CholeskySolver implements GraphSolver
     {
         Tic tic = new Tic();
 
-        int n = g.getStateLength();
-        Matrix A = new Matrix(n, n, matrixType);
-        Matrix B = new Matrix(n, 1);
-
         // Computing A directly, rather than computing J'J, is hugely
         // faster. Each edge connects ge.nodes nodes, which will
         // create ge.nodes.length^2 contributions to A.
-        for (GEdge ge : g.edges) {
-
-            Linearization lin = ge.linearize(g, null);
-
-            for (int i = 0; i < ge.nodes.length; i++) {
-
-                int aidx = g.getStateIndex(ge.nodes[i]);
-                double JatW[][] = LinAlg.matrixAtB(lin.J.get(i), lin.W);
-
-                for (int j = 0; j < ge.nodes.length; j++) {
-
-                    int bidx = g.getStateIndex(ge.nodes[j]);
+        if (linearizer == null)
+            linearizer = new GraphLinearizer(g);
 
-                    double JatWJb[][] = LinAlg.matrixAB(JatW, lin.J.get(j));
+        ParallelFor pf = getPool();
+        linearizer.linearize(pf);
 
-                    A.plusEquals(aidx, bidx, JatWJb);
-                }
-
-                double JatWr[] = LinAlg.matrixAB(JatW, lin.R);
-                B.plusEqualsColumnVector(aidx, 0, JatWr);
-            }
+        if (cacheSymbolic || blockCholesky) {
+            iterateCached(pf, tic);
+            return;
         }
 
+        int n = g.getStateLength();
+        Matrix A = new Matrix(n, n, matrixType);
+        Matrix B = new Matrix(n, 1);
+        linearizer.assemble(A, B, pf);
+
         if (verbose)
             System.out.printf("Build A, B: %15.5f\n", tic.toctic());
 
-        if (useTikhonov) {
-            // Condition the matrix. Any un-constrained variables get a
-            // weight to be unchanged.
-
-            // characteristic weight of J'WJ. Should be between lambda_max
-            // and lambda_min
-            double W0 = 1000; 	    // XXX FIXME
-
-            boolean rooted = false;
-
-            for (GEdge ge : g.edges) {
-                if (ge instanceof GXYTPosEdge) {
-                    rooted = true;
-                    break;
-                }
-            }
-
-            if (!rooted) {
-                // Add an extra constraint to pose 0.
-                GNode gn = g.nodes.get(0);
-                int idx = g.getStateIndex(0);
-                for (int i = 0; i < gn.getDOF(); i++)
-                    A.set(idx+i, idx+i, A.get(idx+i, idx+i)+W0);
+        if (needsVirtualEdge()) {
+            // Add an extra constraint to pose 0.
+            GNode gn = g.nodes.get(0);
+            int idx = g.getStateIndex(0);
+            for (int i = 0; i < gn.getDOF(); i++)
+                A.set(idx+i, idx+i, A.get(idx+i, idx+i)+TIKHONOV_W0);
 
-                if (verbose)
-                    System.out.printf("Adding a virtual edge to pose zero\n");
-            }
+            if (verbose)
+                System.out.printf("Adding a virtual edge to pose zero\n");
         }
 
         Matrix x = null;
@@ -213,8 +287,218 @@ public class CholeskySolver implements GraphSolver
             System.out.printf("Total      : %15.5f\n\n", tic.totalTime());
 
     }
+
+    /** The rest of iterate(), for cacheSymbolic. Returns the step
+     * subtracted from the state, in the order of P'AP; the array is
+     * reused by the next call. **/
+    double[] iterateCached(ParallelFor pf, Tic tic)
+    {
+        if (symbolic == null || symbolic.version != linearizer.version || symbolic.ordering != ordering ||
+            (symbolic.bchol != null) != blockCholesky) {
+            symbolic = makeSymbolic();
+
+            if (verbose)
+                System.out.printf("Symbolic   : %15.5f\n", tic.toctic());
+        }
+
+        Symbolic sym = symbolic;
+        double values[] = (sym.bchol != null) ? sym.bchol.U.values : sym.chol.values;
+        int n = sym.b.length;
+
+        linearizer.assemble(sym.values, sym.b, pf);
+
+        // the upper triangle of P'AP.
+        Arrays.fill(values, 0);
+        for (int k = 0; k < sym.values.length; k++) {
+            if (sym.scatter[k] >= 0)
+                values[sym.scatter[k]] = sym.values[k];
+        }
+
+        if (verbose)
+            System.out.printf("Build A, B: %15.5f\n", tic.toctic());
+
+        if (needsVirtualEdge()) {
+            int idx = g.getStateIndex(0);
+            for (int i = 0; i < g.nodes.get(0).getDOF(); i++)
+                values[sym.diag[sym.invPerm[idx+i]]] += TIKHONOV_W0;
+
+            if (verbose)
+                System.out.printf("Adding a virtual edge to pose zero\n");
+        }
+
+        double lambda = getDamping();
+        if (lambda != 0) {
+            for (int i = 0; i < n; i++)
+                values[sym.diag[i]] += lambda;
+        }
+
+        double x[] = sym.x;
+        for (int i = 0; i < n; i++)
+            x[i] = sym.b[sym.perm[i]];
+
+        if (sym.bchol != null) {
+            sym.bchol.factor();
+            sym.bchol.solve(x, x);
+        } else {
+            sym.chol.factor();
+            sym.chol.solve(x, x);
+        }
+        L = null;
+
+        for (int gnidx = 0; gnidx < g.nodes.size(); gnidx++) {
+            GNode gn = g.nodes.get(gnidx);
+            int idx = g.getStateIndex(gnidx);
+            for (int i = 0; i < gn.getDOF(); i++)
+                gn.state[i] -= x[sym.invPerm[idx+i]];
+        }
+
+        if (verbose)
+            System.out.printf("Solve      : %15.5f\n", tic.toctic());
+        if (verbose)
+            System.out.printf("Total      : %15.5f\n\n", tic.totalTime());
+
+        return x;
+    }
+
+    /** Compute the ordering, and the structures of P'AP and its
+     * factor, for the linearizer's current structure. **/
+    Symbolic makeSymbolic()
+    {
+        GraphLinearizer lin = linearizer;
+
+        Symbolic sym = new Symbolic();
+        sym.version = lin.version;
+        sym.ordering = ordering;
+
+        int n = g.getStateLength();
+        int nnodes = lin.nnodes;
+
+        // the node in each position of the ordering.
+        int nodePerm[];
+        if (ordering == null) {
+            nodePerm = new int[nnodes];
+            for (int a = 0; a < nnodes; a++)
+                nodePerm[a] = a;
+        } else {
+            nodePerm = ordering.getPermutation(makeSymbolicA());
+        }
+
+        sym.perm = new int[n];
+        int pos = 0;
+        for (int saidx = 0; saidx < nodePerm.length; saidx++) {
+            int gnidx = nodePerm[saidx];
+            for (int i = 0; i < lin.dof[gnidx]; i++)
+                sym.perm[pos++] = lin.stateIndex[gnidx] + i;
+        }
+
+        sym.invPerm = new int[n];
+        for (int i = 0; i < n; i++)
+            sym.invPerm[sym.perm[i]] = i;
+
+        // the node owning each row of A.
+        int rowNode[] = new int[n];
+        for (int a = 0; a < nnodes; a++)
+            for (int i = 0; i < lin.dof[a]; i++)
+                rowNode[lin.stateIndex[a] + i] = a;
+
+        if (blockCholesky) {
+            int invNodePerm[] = new int[nnodes];
+            for (int p = 0; p < nnodes; p++)
+                invNodePerm[nodePerm[p]] = p;
+
+            // the pattern of the upper block triangle of P'AP, with
+            // one block per pair of nodes.
+            int blockSize[] = new int[nnodes];
+            int astart[] = new int[nnodes+1];
+            int acols[] = new int[lin.rowStart[nnodes]];
+
+            for (int p = 0; p < nnodes; p++) {
+                int a = nodePerm[p];
+                blockSize[p] = lin.dof[a];
+                astart[p+1] = astart[p];
+
+                for (int k = lin.rowStart[a]; k < lin.rowStart[a+1]; ) {
+                    int b = rowNode[lin.rowCols[k]];
+                    if (invNodePerm[b] >= p)
+                        acols[astart[p+1]++] = invNodePerm[b];
+                    k += lin.dof[b];
+                }
+            }
+
+            sym.bchol = new BlockCholesky(blockSize, astart, acols);
+        } else {
+            // the pattern of the upper triangle of P'AP, row by row.
+            int astart[] = new int[n+1];
+            for (int i = 0; i < n; i++) {
+                int a = rowNode[sym.perm[i]];
+                int count = 0;
+                for (int k = lin.rowStart[a]; k < lin.rowStart[a+1]; k++)
+                    if (sym.invPerm[lin.rowCols[k]] >= i)
+                        count++;
+                astart[i+1] = astart[i] + count;
+            }
+
+            int acols[] = new int[astart[n]];
+            for (int i = 0; i < n; i++) {
+                int a = rowNode[sym.perm[i]];
+                pos = astart[i];
+                for (int k = lin.rowStart[a]; k < lin.rowStart[a+1]; k++) {
+                    int j = sym.invPerm[lin.rowCols[k]];
+                    if (j >= i)
+                        acols[pos++] = j;
+                }
+            }
+
+            sym.chol = new SparseCholesky(n, astart, acols);
+        }
+
+        sym.values = new double[lin.getNumValues()];
+        sym.b = new double[n];
+        sym.x = new double[n];
+        sym.scatter = new int[sym.values.length];
+        sym.diag = new int[n];
+
+        for (int i = 0; i < n; i++)
+            sym.diag[i] = find(sym, i, i);
+
+        for (int a = 0; a < nnodes; a++) {
+            int ncols = lin.rowStart[a+1] - lin.rowStart[a];
+
+            for (int r = 0; r < lin.dof[a]; r++) {
+                int i = sym.invPerm[lin.stateIndex[a] + r];
+
+                for (int c = 0; c < ncols; c++) {
+                    int j = sym.invPerm[lin.rowCols[lin.rowStart[a] + c]];
+                    sym.scatter[lin.valueStart[a] + r*ncols + c] = (j >= i) ? find(sym, i, j) : -1;
+                }
+            }
+        }
+
+        if (verbose)
+            System.out.printf("P'AP size: %d    L nz: %d\n", n,
+                              (sym.bchol != null) ? sym.bchol.getNz() : sym.chol.getNz());
+
+        return sym;
+    }
+
+    /** The position of entry (i, j) of P'AP among the factor's
+     * values. **/
+    static int find(Symbolic sym, int i, int j)
+    {
+        if (sym.bchol == null)
+            return sym.chol.find(i, j);
+
+        BlockSparseMatrix U = sym.bchol.U;
+        int bi = U.getBlock(i), bj = U.getBlock(j);
+        int k = U.find(bi, bj);
+
+        return U.valueStart[k] + (i - U.blockStart[bi])*U.blockSize[bj] + j - U.blockStart[bj];
+    }
+
     public Matrix getR()
     {
+        if (L == null && symbolic != null && (cacheSymbolic || blockCholesky))
+            L = (symbolic.bchol != null) ? symbolic.bchol.getL() : symbolic.chol.getL();
         return L;
     }
 
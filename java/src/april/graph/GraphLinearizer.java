@@ -0,0 +1,326 @@
+package april.graph;
+
+import java.util.*;
+
+import april.jmat.*;
+import april.util.*;
+
+/** Linearizes the edges of a graph and assembles the normal equations
+ * A = J'WJ, B = J'Wr, using several threads if given a ParallelFor.
+ *
+ * Each edge has a Linearization that it refills in place on every
+ * call. The structure of A (which blocks are non-zero, and where in
+ * its rows each edge's blocks go) depends only on which nodes each
+ * edge connects, and is computed once, when the graph grows.
+ *
+ * The rows belonging to a node are assembled by a single thread, by
+ * visiting that node's edges in order. No two threads write to the
+ * same row, there is nothing to merge, and every entry is summed in
+ * the same order as a serial pass over g.edges would sum it: the
+ * result does not depend on the number of threads.
+ *
+ * Nodes and edges may be added between calls, but, as for Graph's
+ * own caches, existing edges must not be removed or reconnected.
+ **/
+class GraphLinearizer
+{
+    final Graph g;
+
+    // the size of the graph the structure below describes, and the
+    // number of times it has been (re)computed.
+    int nnodes = -1, nedges = -1;
+    int version;
+
+    Linearization lins[] = new Linearization[0];
+
+    // the state index and DOF of each node.
+    int stateIndex[], dof[];
+
+    // the edges of node a, as (edge, index in edge.nodes) pairs
+    // sorted by edge, are incEdge[k], incSlot[k] for incStart[a] <= k
+    // < incStart[a+1].
+    int incStart[], incEdge[], incSlot[];
+
+    // the columns of the non-zero blocks in node a's rows, in
+    // ascending order, are rowCols[rowStart[a]] to
+    // rowCols[rowStart[a+1]-1].
+    int rowStart[], rowCols[];
+
+    // the first of node a's values in the layout used by
+    // assemble(double[], double[], ParallelFor).
+    int valueStart[];
+
+    // the block (i, j) of edge e (i.e., the contribution of nodes[j]
+    // to the rows of nodes[i]) starts at position blockOffset[
+    // pairStart[e] + i*nodes.length + j] within those rows.
+    int pairStart[], blockOffset[];
+
+    GraphLinearizer(Graph g)
+    {
+        this.g = g;
+    }
+
+    /** Recompute the structure if nodes or edges have been added
+     * since the last call. **/
+    void update()
+    {
+        if (g.nodes.size() == nnodes && g.edges.size() == nedges)
+            return;
+
+        nnodes = g.nodes.size();
+        nedges = g.edges.size();
+        version++;
+
+        if (lins.length < nedges)
+            lins = Arrays.copyOf(lins, nedges);
+
+        stateIndex = new int[nnodes];
+        dof = new int[nnodes];
+        for (int a = 0; a < nnodes; a++) {
+            stateIndex[a] = g.getStateIndex(a);
+            dof[a] = g.nodes.get(a).getDOF();
+        }
+
+        // the edges of each node.
+        incStart = new int[nnodes + 1];
+        pairStart = new int[nedges + 1];
+
+        for (int e = 0; e < nedges; e++) {
+            int enodes[] = g.edges.get(e).nodes;
+            for (int i = 0; i < enodes.length; i++)
+                incStart[enodes[i] + 1]++;
+            pairStart[e + 1] = pairStart[e] + enodes.length*enodes.length;
+        }
+
+        for (int a = 0; a < nnodes; a++)
+            incStart[a + 1] += incStart[a];
+
+        incEdge = new int[incStart[nnodes]];
+        incSlot = new int[incStart[nnodes]];
+
+        int fill[] = Arrays.copyOf(incStart, nnodes);
+        for (int e = 0; e < nedges; e++) {
+            int enodes[] = g.edges.get(e).nodes;
+            for (int i = 0; i < enodes.length; i++) {
+                int k = fill[enodes[i]]++;
+                incEdge[k] = e;
+                incSlot[k] = i;
+            }
+        }
+
+        // the blocks of each node's rows. The neighbors of node a are
+        // marked with a in mark[], and blockPos[] is the position of
+        // each neighbor's block within a's rows.
+        int mark[] = new int[nnodes];
+        int blockPos[] = new int[nnodes];
+        Arrays.fill(mark, -1);
+
+        int neighbors[] = new int[16];
+        rowStart = new int[nnodes + 1];
+        rowCols = new int[16];
+        valueStart = new int[nnodes + 1];
+        blockOffset = new int[pairStart[nedges]];
+
+        for (int a = 0; a < nnodes; a++) {
+            int nneighbors = 0;
+
+            for (int k = incStart[a]; k < incStart[a + 1]; k++) {
+                int enodes[] = g.edges.get(incEdge[k]).nodes;
+
+                for (int j = 0; j < enodes.length; j++) {
+                    int b = enodes[j];
+                    if (mark[b] == a)
+                        continue;
+
+                    mark[b] = a;
+                    if (nneighbors == neighbors.length)
+                        neighbors = Arrays.copyOf(neighbors, 2*nneighbors);
+                    neighbors[nneighbors++] = b;
+                }
+            }
+
+            // state indices increase with the node index.
+            Arrays.sort(neighbors, 0, nneighbors);
+
+            int ncols = 0;
+            for (int k = 0; k < nneighbors; k++) {
+                int b = neighbors[k];
+                blockPos[b] = ncols;
+
+                if (rowStart[a] + ncols + dof[b] > rowCols.length)
+                    rowCols = Arrays.copyOf(rowCols, 2*(rowStart[a] + ncols + dof[b]));
+
+                for (int c = 0; c < dof[b]; c++)
+                    rowCols[rowStart[a] + ncols + c] = stateIndex[b] + c;
+                ncols += dof[b];
+            }
+
+            rowStart[a + 1] = rowStart[a] + ncols;
+            valueStart[a + 1] = valueStart[a] + dof[a]*ncols;
+
+            for (int k = incStart[a]; k < incStart[a + 1]; k++) {
+                int e = incEdge[k], i = incSlot[k];
+                int enodes[] = g.edges.get(e).nodes;
+
+                for (int j = 0; j < enodes.length; j++)
+                    blockOffset[pairStart[e] + i*enodes.length + j] = blockPos[enodes[j]];
+            }
+        }
+    }
+
+    /** Linearize every edge about the current state. **/
+    void linearize(ParallelFor pf)
+    {
+        update();
+
+        run(pf, nedges, 1, new ParallelFor.Task() {
+                public void run(int e0, int e1)
+                {
+                    for (int e = e0; e < e1; e++)
+                        lins[e] = g.edges.get(e).linearize(g, lins[e]);
+                }
+            });
+    }
+
+    /** Fill in A and B from the most recent call to
+     * linearize(). A must be a new (all zero) n x n matrix, and B a
+     * new n x 1 matrix, where n = g.getStateLength(). **/
+    void assemble(final Matrix A, final Matrix B, ParallelFor pf)
+    {
+        final int n = A.getColumnDimension();
+
+        // nodes have very different numbers of edges, so use more
+        // chunks than threads.
+        run(pf, nnodes, 4, new ParallelFor.Task() {
+                public void run(int a0, int a1)
+                {
+                    double JatW[] = new double[0];
+
+                    for (int a = a0; a < a1; a++) {
+                        int da = dof[a], r0 = stateIndex[a];
+                        int c0 = rowStart[a], ncols = rowStart[a + 1] - c0;
+
+                        double values[] = new double[da*ncols];
+                        double b[] = new double[da];
+                        JatW = assembleRows(a, values, 0, b, 0, JatW);
+
+                        for (int r = 0; r < da; r++) {
+                            if (A.isSparse()) {
+                                CSRVec v = new CSRVec(n, Math.max(1, ncols));
+                                System.arraycopy(rowCols, c0, v.indices, 0, ncols);
+                                System.arraycopy(values, r*ncols, v.values, 0, ncols);
+                                v.nz = ncols;
+
+                                // as when built with plusEquals(), don't store zeros.
+                                v.filterZeros();
+                                A.setRow(r0 + r, v);
+                            } else {
+                                for (int c = 0; c < ncols; c++)
+                                    A.set(r0 + r, rowCols[c0 + c], values[r*ncols + c]);
+                            }
+
+                            B.set(r0 + r, 0, b[r]);
+                        }
+                    }
+                }
+            });
+    }
+
+    /** Fill in A and B from the most recent call to linearize(), in
+     * the fixed layout described by the structure: row r of node a
+     * (i.e., row stateIndex[a]+r of A) is in values[valueStart[a] +
+     * r*ncols] to values[valueStart[a] + (r+1)*ncols - 1], where
+     * ncols = rowStart[a+1] - rowStart[a], and its columns are
+     * rowCols[rowStart[a]] onwards. values must have length
+     * getNumValues(), and b length g.getStateLength(). **/
+    void assemble(final double values[], final double b[], ParallelFor pf)
+    {
+        run(pf, nnodes, 4, new ParallelFor.Task() {
+                public void run(int a0, int a1)
+                {
+                    double JatW[] = new double[0];
+
+                    for (int a = a0; a < a1; a++) {
+                        Arrays.fill(values, valueStart[a], valueStart[a + 1], 0);
+                        Arrays.fill(b, stateIndex[a], stateIndex[a] + dof[a], 0);
+                        JatW = assembleRows(a, values, valueStart[a], b, stateIndex[a], JatW);
+                    }
+                }
+            });
+    }
+
+    int getNumValues()
+    {
+        return valueStart[nnodes];
+    }
+
+    /** Add the rows of A and B belonging to node a into values (at
+     * offset voff, with rows of rowStart[a+1] - rowStart[a] entries)
+     * and b (at offset boff). JatW is scratch space, which is grown
+     * (and returned) if necessary. **/
+    double[] assembleRows(int a, double values[], int voff, double b[], int boff, double JatW[])
+    {
+        int da = dof[a];
+        int ncols = rowStart[a + 1] - rowStart[a];
+
+        for (int k = incStart[a]; k < incStart[a + 1]; k++) {
+            int e = incEdge[k], i = incSlot[k];
+            int enodes[] = g.edges.get(e).nodes;
+            Linearization lin = lins[e];
+
+            double Ji[][] = lin.J.get(i);
+            double W[][] = lin.W;
+            int m = W.length;
+
+            if (JatW.length < da*m)
+                JatW = new double[da*m];
+
+            // JatW = Ji'*W. (The summation orders here match
+            // LinAlg.matrixAtB and matrixAB.)
+            for (int r = 0; r < da; r++) {
+                for (int c = 0; c < m; c++) {
+                    double acc = 0;
+                    for (int q = 0; q < m; q++)
+                        acc += Ji[q][r]*W[q][c];
+                    JatW[r*m + c] = acc;
+                }
+            }
+
+            // A(a, nodes[j]) += JatW*Jj
+            for (int j = 0; j < enodes.length; j++) {
+                double Jj[][] = lin.J.get(j);
+                int db = dof[enodes[j]];
+                int offset = voff + blockOffset[pairStart[e] + i*enodes.length + j];
+
+                for (int r = 0; r < da; r++) {
+                    for (int c = 0; c < db; c++) {
+                        double acc = 0;
+                        for (int q = 0; q < m; q++)
+                            acc += JatW[r*m + q]*Jj[q][c];
+                        values[offset + r*ncols + c] += acc;
+                    }
+                }
+            }
+
+            // B(a) += JatW*r
+            for (int r = 0; r < da; r++) {
+                double acc = 0;
+                for (int q = 0; q < m; q++)
+                    acc += JatW[r*m + q]*lin.R[q];
+                b[boff + r] += acc;
+            }
+        }
+
+        return JatW;
+    }
+
+    /** Run task over [0, n) with pf, using chunksPerThread chunks per
+     * thread, or on the calling thread if pf is null. **/
+    static void run(ParallelFor pf, int n, int chunksPerThread, ParallelFor.Task task)
+    {
+        if (pf == null)
+            task.run(0, n);
+        else
+            pf.run(n, chunksPerThread*pf.getNumThreads(), task);
+    }
+}
@@ -8,6 +8,10 @@ public class GraphUtil
     public static boolean verbose = true;
     public static int matrixType = Matrix.SPARSE;
 
+    // Factor with BlockCholesky (one dense block per pair of nodes)
+    // rather than CholeskyDecomposition.
+    public static boolean blockCholesky = false;
+
 
     // The SolveState infrastructure facilitates auxiliary computations
     // such as marginal or conditional covariance given a graph
@@ -20,6 +24,7 @@ public class GraphUtil
         // Matrix PAP, PB;
 
         CholeskyDecomposition cd;
+        BlockCholesky bcd;
 
         int perm[];
         int invPerm[];
@@ -80,7 +85,7 @@ public class GraphUtil
         int n = ss.g.getStateLength();
         Matrix SA = makeSymbolicA(ss.g);
 
-        int saPerm[] = new MinimumDegreeOrdering().getPermutation(SA);
+        int saPerm[] = new ApproximateMinimumDegreeOrdering().getPermutation(SA);
 
 
         int perm[] = new int[n];
@@ -98,7 +103,15 @@ public class GraphUtil
         Matrix PB = ss.B.copy();
         PB.permuteRows(perm);
 
-        ss.cd = new CholeskyDecomposition(PAP, verbose);
+        if (blockCholesky) {
+            int blockSize[] = new int[saPerm.length];
+            for (int saidx = 0; saidx < saPerm.length; saidx++)
+                blockSize[saidx] = ss.g.nodes.get(saPerm[saidx]).getDOF();
+
+            ss.bcd = new BlockCholesky(PAP, blockSize);
+        } else {
+            ss.cd = new CholeskyDecomposition(PAP, verbose);
+        }
     }
 
     public static int[] inversePerm(int perm[])
@@ -114,11 +127,11 @@ public class GraphUtil
     // Computes the full covariance of the graph
     public static Matrix computeCovariance(SolveState ss)
     {
-        assert(ss.cd != null);
+        assert(ss.cd != null || ss.bcd != null);
 
         // Covariance computation
         int n = ss.g.getStateLength();
-        Matrix PAinvP = ss.cd.solve(Matrix.identity(n,n));
+        Matrix PAinvP = (ss.bcd != null) ? ss.bcd.solve(Matrix.identity(n,n)) : ss.cd.solve(Matrix.identity(n,n));
         return PAinvP.copyPermuteRowsAndColumns(ss.invPerm);
     }
 
@@ -0,0 +1,304 @@
+package april.graph;
+
+import java.util.*;
+
+import april.jmat.*;
+import april.jmat.ordering.*;
+import april.util.*;
+
+/** Incremental smoothing and mapping, after Kaess, Ranganathan and
+ * Dellaert, "iSAM: Incremental Smoothing and Mapping" (2008).
+ *
+ * The square-root information matrix R (with R'R = J'WJ) is kept
+ * between calls to iterate(). Nodes added to the graph since the last
+ * call become new columns of R, and edges become new rows, which are
+ * folded in with Givens rotations (IncrementalGivens). A new edge
+ * between recent nodes only touches the last few rows of R, so the
+ * cost of an update depends on the size of the update rather than on
+ * the size of the graph (apart from the back-substitution, which is
+ * linear in the number of non-zeros of R).
+ *
+ * Each edge is linearized once, when it is added, about the same
+ * point as the rest of R (for a new node, its state when it was
+ * added), so the estimate is always a Gauss-Newton step from that
+ * point. But the estimate drifts away from it, and loop closures fill
+ * in R, so every batchInterval calls the whole graph is relinearized,
+ * reordered and factored from scratch, exactly as by CholeskySolver
+ * (whose ordering, useTikhonov and nthreads settings apply). The
+ * same batch step is taken when nothing has been added since the
+ * last call, so that calling iterate() repeatedly converges as it
+ * does for the other GraphSolvers.
+ *
+ * As for GraphLinearizer, nodes and edges may be added between calls,
+ * but existing ones must not be removed or changed.
+ **/
+public class IncrementalSolver extends CholeskySolver
+{
+    /** Relinearize, reorder and refactor from scratch after this many
+     * incremental updates. **/
+    public int batchInterval = 100;
+
+    IncrementalGivens givens;
+
+    // the number of incremental updates since the last batch step.
+    int steps;
+
+    // the nodes and edges that have been added to R.
+    int nnodes, nedges;
+
+    // the first column of R belonging to each node.
+    int colStart[] = new int[0];
+
+    // the linearization point, for each column of R. The estimate is
+    // xlin - x, where R x = d.
+    double xlin[];
+
+    public IncrementalSolver(Graph g)
+    {
+        this(g, new ApproximateMinimumDegreeOrdering());
+    }
+
+    public IncrementalSolver(Graph g, Ordering ordering)
+    {
+        super(g, ordering);
+        cacheSymbolic = true;
+    }
+
+    @Override
+    public void iterate()
+    {
+        Tic tic = new Tic();
+
+        // With nothing new, an update would just solve the same R
+        // again: relinearize instead.
+        boolean unchanged = (nnodes == g.nodes.size() && nedges == g.edges.size());
+
+        if (givens == null || steps >= batchInterval || unchanged) {
+            batch(tic);
+            return;
+        }
+
+        steps++;
+
+        for ( ; nnodes < g.nodes.size(); nnodes++)
+            addNode(nnodes);
+
+        for ( ; nedges < g.edges.size(); nedges++)
+            addEdge(g.edges.get(nedges));
+
+        if (verbose)
+            System.out.printf("Update R   : %15.5f\n", tic.toctic());
+
+        // wait until every column has a pivot: a new node's columns
+        // have none until an edge constrains it.
+        if (!givens.isFullRank())
+            return;
+
+        double x[] = givens.solve();
+
+        for (int a = 0; a < nnodes; a++) {
+            GNode gn = g.nodes.get(a);
+            for (int i = 0; i < gn.getDOF(); i++)
+                gn.state[i] = xlin[colStart[a]+i] - x[colStart[a]+i];
+        }
+
+        if (verbose)
+            System.out.printf("Solve      : %15.5f\n", tic.toctic());
+        if (verbose)
+            System.out.printf("Total      : %15.5f\n\n", tic.totalTime());
+    }
+
+    /** Relinearize every edge about the current state, and compute R
+     * from scratch with a new ordering. **/
+    void batch(Tic tic)
+    {
+        if (linearizer == null)
+            linearizer = new GraphLinearizer(g);
+
+        ParallelFor pf = getPool();
+        linearizer.linearize(pf);
+
+        int n = g.getStateLength();
+        double x0[] = new double[n];
+        for (int a = 0; a < g.nodes.size(); a++) {
+            GNode gn = g.nodes.get(a);
+            System.arraycopy(gn.state, 0, x0, g.getStateIndex(a), gn.getDOF());
+        }
+
+        // R'R x = P'B, where P'AP = R'R: so R x = d.
+        double x[] = iterateCached(pf, tic);
+
+        Matrix R = getR().transpose();
+        DenseVec xv = new DenseVec(x);
+        double d[] = new double[n];
+        for (int i = 0; i < n; i++)
+            d[i] = R.getRow(i).dotProduct(xv);
+
+        givens = new IncrementalGivens(R, d);
+
+        nnodes = g.nodes.size();
+        nedges = g.edges.size();
+        steps = 0;
+
+        colStart = new int[nnodes];
+        xlin = new double[n];
+
+        for (int a = 0; a < nnodes; a++) {
+            int idx = g.getStateIndex(a);
+            colStart[a] = symbolic.invPerm[idx];
+
+            for (int i = 0; i < g.nodes.get(a).getDOF(); i++)
+                xlin[colStart[a]+i] = x0[idx+i];
+        }
+    }
+
+    /** Add columns to R for node a, whose current state becomes its
+     * linearization point. **/
+    void addNode(int a)
+    {
+        GNode gn = g.nodes.get(a);
+        int dof = gn.getDOF();
+        int ncols = givens.getNumColumns();
+
+        if (colStart.length <= a)
+            colStart = Arrays.copyOf(colStart, 2*a + 1);
+        colStart[a] = ncols;
+
+        givens.addColumns(dof);
+
+        xlin = Arrays.copyOf(xlin, ncols + dof);
+        System.arraycopy(gn.state, 0, xlin, ncols, dof);
+    }
+
+    /** Add rows to R for edge ge, linearized about xlin like the
+     * rows already there. **/
+    void addEdge(GEdge ge)
+    {
+        double saved[][] = new double[ge.nodes.length][];
+        for (int i = 0; i < ge.nodes.length; i++) {
+            GNode gn = g.nodes.get(ge.nodes[i]);
+            saved[i] = gn.state;
+            gn.state = Arrays.copyOfRange(xlin, colStart[ge.nodes[i]], colStart[ge.nodes[i]] + gn.getDOF());
+        }
+
+        Linearization lin = ge.linearize(g, null);
+
+        for (int i = 0; i < ge.nodes.length; i++)
+            g.nodes.get(ge.nodes[i]).state = saved[i];
+
+        int ncols = givens.getNumColumns();
+
+        // Whiten: with W = L*L', the rows are L'J and the right-hand
+        // side L'R.
+        double L[][] = new CholeskyDecomposition(new Matrix(lin.W)).getL().copyArray();
+        int m = lin.W.length;
+
+        CSRVec rows[] = new CSRVec[m];
+        for (int k = 0; k < m; k++)
+            rows[k] = new CSRVec(ncols);
+
+        for (int i = 0; i < ge.nodes.length; i++) {
+            double LtJ[][] = LinAlg.matrixAtB(L, lin.J.get(i));
+            int c0 = colStart[ge.nodes[i]];
+
+            for (int k = 0; k < m; k++)
+                for (int c = 0; c < LtJ[k].length; c++)
+                    rows[k].plusEquals(c0 + c, LtJ[k][c]);
+        }
+
+        givens.addRows(rows, LinAlg.matrixAtB(L, lin.R));
+    }
+
+    /** Grow a graph around a loop, adding each new node and its
+     * odometry edge in separate calls to iterate(), and check that
+     * the estimate stays finite and converges. After a loop closure,
+     * R has more rows than columns, but a new node's columns have no
+     * pivot until its edge is added. **/
+    public static void main(String args[])
+    {
+        Random r = new Random(1);
+        CholeskySolver.verbose = false;
+
+        int nposes = 40;
+        double truth[][] = new double[nposes][];
+        for (int i = 0; i < nposes; i++) {
+            double theta = 2*Math.PI*i/10;
+            truth[i] = new double[] { 10*Math.cos(theta), 10*Math.sin(theta), theta + Math.PI/2 };
+        }
+
+        Graph g = new Graph();
+        IncrementalSolver solver = new IncrementalSolver(g);
+
+        GXYTPosEdge prior = new GXYTPosEdge();
+        prior.nodes = new int[] { 0 };
+        prior.z = LinAlg.copy(truth[0]);
+        prior.P = LinAlg.scale(LinAlg.identity(3), 0.01);
+        g.edges.add(prior);
+
+        int errors = 0;
+
+        for (int i = 0; i < nposes; i++) {
+            GXYTNode gn = new GXYTNode();
+            gn.init = LinAlg.add(truth[i], new double[] { 0.1*r.nextGaussian(), 0.1*r.nextGaussian(),
+                                                          0.01*r.nextGaussian() });
+            gn.state = LinAlg.copy(gn.init);
+            g.nodes.add(gn);
+
+            if (i > 0) {
+                // the new node alone, then its edge.
+                solver.iterate();
+                errors += countNonFinite(g);
+
+                g.edges.add(makeEdge(truth, i-1, i));
+            }
+
+            // close the loop every full turn.
+            if (i >= 10)
+                g.edges.add(makeEdge(truth, i-10, i));
+
+            solver.iterate();
+            errors += countNonFinite(g);
+        }
+
+        double incErr = maxError(g, truth);
+
+        // with nothing new, each call relinearizes.
+        for (int iter = 0; iter < 3; iter++)
+            solver.iterate();
+
+        double batchErr = maxError(g, truth);
+
+        if (incErr > 0.05 || batchErr > 1e-6)
+            errors++;
+
+        System.out.printf("max error %g incremental, %g after relinearizing\n", incErr, batchErr);
+        System.out.println(errors == 0 ? "OK" : "FAILED: "+errors+" errors");
+    }
+
+    static GXYTEdge makeEdge(double truth[][], int a, int b)
+    {
+        GXYTEdge ge = new GXYTEdge();
+        ge.nodes = new int[] { a, b };
+        ge.z = LinAlg.xytInvMul31(truth[a], truth[b]);
+        ge.P = LinAlg.scale(LinAlg.identity(3), 0.01);
+        return ge;
+    }
+
+    static int countNonFinite(Graph g)
+    {
+        int count = 0;
+        for (GNode gn : g.nodes)
+            for (int i = 0; i < gn.state.length; i++)
+                if (Double.isNaN(gn.state[i]) || Double.isInfinite(gn.state[i]))
+                    count++;
+        return count;
+    }
+
+    static double maxError(Graph g, double truth[][])
+    {
+        double err = 0;
+        for (int i = 0; i < truth.length; i++)
+            err = Math.max(err, LinAlg.distance(g.nodes.get(i).state, truth[i]));
+        return err;
+    }
+}
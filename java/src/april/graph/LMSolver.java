@@ -17,7 +17,7 @@ public class LMSolver extends CholeskySolver
     // Consistency Constructor Solver(Graph g)
     public LMSolver(Graph g)
     {
-        this(g, new MinimumDegreeOrdering(), 10e-6, 10e6, 10);
+        this(g, new ApproximateMinimumDegreeOrdering(), 10e-6, 10e6, 10);
     }
 
     public LMSolver(Graph g, Ordering ordering, double minDamping, double maxDamping, double scale)
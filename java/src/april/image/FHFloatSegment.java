@@ -54,6 +54,20 @@ public class FHFloatSegment
     public static BufferedImage segment(float r[], float g[], float b[], float maxV,
                                         int width, int height,
                                         double k, int minSz)
+    {
+        return segment(r, g, b, maxV, width, height, k, minSz, null);
+    }
+
+    // As above, but if 'pf' is non-null the image is split into bands
+    // of rows (one per thread) that are segmented in parallel. The
+    // clusters that reach a band's border are then split up and their
+    // edges merged again in the global order (see SegmentBands), so
+    // segments are not cut along the borders; only where such a
+    // segment meets one built entirely within a band can the result
+    // differ from the serial one.
+    public static BufferedImage segment(float r[], float g[], float b[], float maxV,
+                                        int width, int height,
+                                        double k, int minSz, ParallelFor pf)
     {
         Tic tic = new Tic();
         k *= (maxV / 255.0); // Rescale to match FH's parameter values
@@ -99,27 +113,7 @@ public class FHFloatSegment
         }
         if (verbose)  System.out.printf(" %f -- edges \n",tic.toctic());
 
-        if (true) { // counting sort
-            // int maxv = maxErr;
-            int counts[] = new int[maxErr + 1];
-            for (int i = 0; i < nedges; i++) {
-                int w = (int) (edges[i]&WEIGHT_MASK);
-                counts[w]++;
-            }
-
-            // Integrate
-            for (int i = 1; i < counts.length; i++)
-                counts[i] += counts[i-1];
-
-            // sort
-            long newedges[] = new long[nedges];
-            for (int i =0; i < nedges; i++) {
-                int w = (int) (edges[i]&WEIGHT_MASK);
-                counts[w]--;
-                newedges[counts[w]] = edges[i];
-            }
-            edges = newedges;
-        }
+        edges = new RadixSort().sort(edges, nedges, maxErr, WEIGHT_MASK, null, pf);
 
         if (verbose) System.out.printf(" %f -- sort \n",tic.toctic());
 
@@ -130,19 +124,35 @@ public class FHFloatSegment
         for (int i = 0; i < threshold.length; i++)
             threshold[i] = k;
 
-        for (int i = 0; i < nedges; i++) {
-            int ida = (int) ((edges[i]>>IDA_SHIFT)&INDEX_MASK);
-            int idb = (int) ((edges[i]>>IDB_SHIFT)&INDEX_MASK);
-            ida = (int) uf.getRepresentative(ida);
-            idb = (int) uf.getRepresentative(idb);
+        if (pf == null || pf.getNumThreads() == 1) {
+            connect(edges, 0, nedges, uf, threshold, k, errScale_d);
+        } else {
+            final SegmentBands bands = SegmentBands.partition(edges, nedges, IDA_SHIFT, IDB_SHIFT, INDEX_MASK,
+                                                              width, height, pf.getNumThreads(), null);
+            final UnionFindSimple fuf = uf;
+            final double fthreshold[] = threshold;
+            final double fk = k, fscale = errScale_d;
+
+            pf.run(bands.nbands, bands.nbands, new ParallelFor.Task() {
+                    public void run(int b0, int b1)
+                    {
+                        for (int band = b0; band < b1; band++)
+                            connect(bands.edges, bands.offsets[band], bands.offsets[band+1], fuf, fthreshold, fk, fscale);
+                    }
+                });
+
+            byte flags[] = bands.splitBorderClusters(uf, null, pf);
+
+            for (int i = 0; i < threshold.length; i++)
+                if ((flags[i] & SegmentBands.BORDER_PIXEL) != 0)
+                    threshold[i] = k;
 
-            if (ida == idb)
-                continue;
+            for (int i = 0; i < nedges; i++) {
+                int ida = (int) ((edges[i]>>IDA_SHIFT)&INDEX_MASK);
+                int idb = (int) ((edges[i]>>IDB_SHIFT)&INDEX_MASK);
 
-            double w = (edges[i]&WEIGHT_MASK)*errScale_d;
-            if (w <= threshold[ida] && w <= threshold[idb]) {
-                ida = uf.connectNodes(ida, idb);
-                threshold[ida] = w +  k/uf.getSetSize(ida);
+                if (((flags[ida] | flags[idb]) & SegmentBands.BORDER_PIXEL) != 0)
+                    connect(edges, i, i+1, uf, threshold, k, errScale_d);
             }
         }
         if (verbose) System.out.printf(" %f -- unionfind \n",tic.toctic());
@@ -175,4 +185,26 @@ public class FHFloatSegment
 
         return _out;
     }
+
+    // Process edges[i0] to edges[i1-1] (sorted by increasing weight),
+    // joining components whose thresholds allow it.
+    static void connect(long edges[], int i0, int i1, UnionFindSimple uf,
+                        double threshold[], double k, double errScale_d)
+    {
+        for (int i = i0; i < i1; i++) {
+            int ida = (int) ((edges[i]>>IDA_SHIFT)&INDEX_MASK);
+            int idb = (int) ((edges[i]>>IDB_SHIFT)&INDEX_MASK);
+            ida = (int) uf.getRepresentative(ida);
+            idb = (int) uf.getRepresentative(idb);
+
+            if (ida == idb)
+                continue;
+
+            double w = (edges[i]&WEIGHT_MASK)*errScale_d;
+            if (w <= threshold[ida] && w <= threshold[idb]) {
+                ida = uf.connectNodes(ida, idb);
+                threshold[ida] = w +  k/uf.getSetSize(ida);
+            }
+        }
+    }
 }
\ No newline at end of file
@@ -33,6 +33,18 @@ public class FHSegment
     }
 
     public static BufferedImage segment(BufferedImage _in, double k, int minSize)
+    {
+        return segment(_in, k, minSize, null);
+    }
+
+    /** As above, but if pf is non-null, the image is split into bands
+     * of rows (one per thread) which are segmented in parallel. The
+     * clusters that reach a band's border are then split up and their
+     * edges merged again in the global order (see SegmentBands), so
+     * segments are not cut along the borders; only where such a
+     * segment meets one built entirely within a band can the result
+     * differ from the serial one. **/
+    public static BufferedImage segment(BufferedImage _in, double k, int minSize, ParallelFor pf)
     {
         int width = _in.getWidth(), height = _in.getHeight();
         int in[] = ((DataBufferInt) (_in.getRaster().getDataBuffer())).getData();
@@ -78,48 +90,38 @@ public class FHSegment
         UnionFindSimple uf = new UnionFindSimple(width*height);
 
         // process edges in order of increasing weight
-        if (true) {
-            // counting sort
-
-            int maxv = rgbError(0xffffff, 0x000000) + 1;
-            int counts[] = new int[maxv];
-            for (int i = 0; i < edges.length; i++) {
-                int w = (int) (edges[i]&WEIGHT_MASK);
-                counts[w]++;
-            }
-
-            // accumulate.
-            for (int i = 1; i < counts.length; i++)
-                counts[i] += counts[i-1];
-
-            long newedges[] = new long[edges.length];
-
-            for (int i = 0; i < edges.length; i++) {
-                int w = (int) (edges[i]&WEIGHT_MASK);
-                counts[w]--;
-                newedges[counts[w]] = edges[i];
-            }
-
-            edges = newedges;
-        }
+        edges = new RadixSort().sort(edges, edges.length, rgbError(0xffffff, 0x000000), WEIGHT_MASK, null, pf);
 
         // actually connect the components. (core part of the algorithm)
-        for (int i = 0; i < edges.length; i++) {
-            int ida = (int) ((edges[i]>>IDA_SHIFT)&INDEX_MASK);
-            int idb = (int) ((edges[i]>>IDB_SHIFT)&INDEX_MASK);
-            double w = ((edges[i]>>WEIGHT_SHIFT)&WEIGHT_MASK) / 100.0;
-
-            ida = (int) uf.getRepresentative(ida);
-            idb = (int) uf.getRepresentative(idb);
-
-            if (ida == idb)
-                continue;
-
-            if (w <= thresh[ida] && w <= thresh[idb]) {
+        if (pf == null || pf.getNumThreads() == 1) {
+            connect(edges, 0, edges.length, uf, thresh, k);
+        } else {
+            final SegmentBands bands = SegmentBands.partition(edges, edges.length, IDA_SHIFT, IDB_SHIFT, INDEX_MASK,
+                                                              width, height, pf.getNumThreads(), null);
+            final UnionFindSimple fuf = uf;
+            final double fthresh[] = thresh;
+            final double fk = k;
+
+            pf.run(bands.nbands, bands.nbands, new ParallelFor.Task() {
+                    public void run(int b0, int b1)
+                    {
+                        for (int b = b0; b < b1; b++)
+                            connect(bands.edges, bands.offsets[b], bands.offsets[b+1], fuf, fthresh, fk);
+                    }
+                });
+
+            byte flags[] = bands.splitBorderClusters(uf, null, pf);
+
+            for (int i = 0; i < thresh.length; i++)
+                if ((flags[i] & SegmentBands.BORDER_PIXEL) != 0)
+                    thresh[i] = k;
 
-                int root = (int) uf.connectNodes(ida, idb);
+            for (int i = 0; i < edges.length; i++) {
+                int ida = (int) ((edges[i]>>IDA_SHIFT)&INDEX_MASK);
+                int idb = (int) ((edges[i]>>IDB_SHIFT)&INDEX_MASK);
 
-                thresh[root] = w + k / uf.getSetSize(root);
+                if (((flags[ida] | flags[idb]) & SegmentBands.BORDER_PIXEL) != 0)
+                    connect(edges, i, i+1, uf, thresh, k);
             }
         }
 
@@ -149,37 +151,38 @@ public class FHSegment
         return _out;
     }
 
-    /** Sort and return the first vlength values in v[] by the value
-     * of v[i]&amp;mask. The maximum value in the array 'v' is maxv
-     * (if maxv is negative, maxv will be found). These weights must
-     * be small enough to fit in an integer. This implementation is
-     * not stable.
-     **/
-    public static long[] countingSortLongArray(long v[], int vlength, int maxv, long mask)
+    /** Process edges[i0] to edges[i1-1] (sorted by increasing
+     * weight), joining components whose thresholds allow it. **/
+    static void connect(long edges[], int i0, int i1, UnionFindSimple uf, double thresh[], double k)
     {
-        if (maxv < 0) {
-            for (int i = 0; i < vlength; i++)
-                maxv = Math.max(maxv, (int) (v[i]&mask));
-        }
+        for (int i = i0; i < i1; i++) {
+            int ida = (int) ((edges[i]>>IDA_SHIFT)&INDEX_MASK);
+            int idb = (int) ((edges[i]>>IDB_SHIFT)&INDEX_MASK);
+            double w = ((edges[i]>>WEIGHT_SHIFT)&WEIGHT_MASK) / 100.0;
 
-        int counts[] = new int[maxv+1];
+            ida = (int) uf.getRepresentative(ida);
+            idb = (int) uf.getRepresentative(idb);
 
-        for (int i = 0; i < vlength; i++) {
-            int w = (int) (v[i]&mask);
-            counts[w]++;
-        }
+            if (ida == idb)
+                continue;
+
+            if (w <= thresh[ida] && w <= thresh[idb]) {
 
-        // accumulate.
-        for (int i = 1; i < counts.length; i++)
-            counts[i] += counts[i-1];
+                int root = (int) uf.connectNodes(ida, idb);
 
-        long newv[] = new long[vlength];
-        for (int i = 0; i < vlength; i++) {
-            int w = (int) (v[i]&mask);
-            counts[w]--;
-            newv[counts[w]] = v[i];
+                thresh[root] = w + k / uf.getSetSize(root);
+            }
         }
+    }
 
-        return newv;
+    /** Sort and return the first vlength values in v[] by the value
+     * of v[i]&amp;mask. The maximum value in the array 'v' is maxv
+     * (if maxv is negative, maxv will be found). These weights must
+     * be small enough to fit in an integer. This implementation is
+     * stable. See RadixSort.
+     **/
+    public static long[] countingSortLongArray(long v[], int vlength, int maxv, long mask)
+    {
+        return RadixSort.sort(v, vlength, maxv, mask);
     }
 }
@@ -4,6 +4,7 @@ import java.awt.image.*;
 import java.util.*;
 
 import april.jmat.*;
+import april.util.*;
 
 public class FloatImage
 {
@@ -102,34 +103,19 @@ public class FloatImage
      **/
     public FloatImage filterFactoredCentered(float fhoriz[], float fvert[], float r[])
     {
-        if ( r == null)
-            r = new float[d.length];
-        else
-            assert(r.length == d.length);
-
-
-        // do horizontal
-        for (int y = 0; y < height; y++) {
-            SigProc.convolveSymmetricCentered(d, y*width, width, fhoriz, r, y*width);
-        }
-
-        // do vertical
-        float tmp[] = new float[height];  // the column before convolution
-        float tmp2[] = new float[height]; // the column after convolution.
-
-        for (int x = 0; x < width; x++) {
-
-            // copy the column out for locality.
-            for (int y = 0; y < height; y++)
-                tmp[y] = r[y*width + x];
-
-            SigProc.convolveSymmetricCentered(tmp, 0, height, fvert, tmp2, 0);
-
-            for (int y = 0; y < height; y++)
-                r[y*width + x] = tmp2[y];
-        }
+        return filterFactoredCentered(fhoriz, fvert, r, null);
+    }
 
-        return new FloatImage(width, height, r);
+    /** Perform 2D convolution using f as the factor of a separable
+     * filter, shifting the output by -f.length/2 so there is no net
+     * shift. The work is divided among the threads of 'pf' (which may
+     * be null). The result does not depend on the number of threads.
+     * See SeparableConvolution, which can also reuse its scratch
+     * space across calls.
+     **/
+    public FloatImage filterFactoredCentered(float fhoriz[], float fvert[], float r[], ParallelFor pf)
+    {
+        return new SeparableConvolution(fhoriz, fvert).apply(this, r, pf);
     }
 
     /** Perform 2D convolution using f as the factor of a separable
@@ -272,11 +258,22 @@ public class FloatImage
     }
 
     public FloatImage decimateAvg()
+    {
+        return decimateAvg(null);
+    }
+
+    /** Allows specifying the output buffer (of size
+     * (width/2)*(height/2)) to prevent unnecessary data allocation.
+     **/
+    public FloatImage decimateAvg(float r[])
     {
         int nwidth = width/2;
         int nheight = height/2;
 
-        float r[] = new float[nwidth*nheight];
+        if (r == null)
+            r = new float[nwidth*nheight];
+        else
+            assert(r.length == nwidth*nheight);
 
         for (int y = 0; y < nheight; y++)
             for (int x = 0; x < nwidth; x++)
@@ -496,6 +493,32 @@ public class FloatImage
         return f;
     }
 
+    /** Convert 8 bit grayscale data (e.g., a GRAY8 frame) to floats
+     * in [0,1]. Row y of the image begins at gray[offset + y*stride];
+     * stride may be larger than width if rows are padded. If f is
+     * null, a new array is allocated.
+     **/
+    public static float[] grayToFloats(byte gray[], int offset, int width, int height, int stride, float f[])
+    {
+        if (f == null)
+            f = new float[width * height];
+        else
+            assert(f.length == width*height);
+
+        assert(stride >= width);
+        assert(offset + (height-1)*stride + width <= gray.length);
+
+        for (int y = 0; y < height; y++) {
+            int in = offset + y*stride;
+            int out = y*width;
+
+            for (int x = 0; x < width; x++)
+                f[out + x] = (gray[in + x]&0xff)*(1.0f/255.0f);
+        }
+
+        return f;
+    }
+
     public ArrayList<float[]> localMaxima()
     {
         ArrayList<float[]> maxima = new ArrayList<float[]>();
@@ -0,0 +1,178 @@
+package april.image;
+
+import java.util.*;
+
+import april.util.*;
+
+/** Splits the edges of a pixel graph into horizontal bands of rows,
+ * so that a greedy union-find segmentation (FHSegment,
+ * FHFloatSegment, TagDetector) can process the bands in parallel.
+ *
+ * Each edge joins two pixels, identified by their index y*width+x
+ * packed into a long at idaShift and idbShift. Edges whose pixels lie
+ * in the same band go to that band; edges that cross from one band
+ * into the next go to a final group of "border" edges, which must be
+ * processed after all of the bands are done. The relative order of
+ * the edges is preserved, so if the input was sorted by weight, so is
+ * every group.
+ *
+ * Since no two bands share a pixel, the bands' clusters are disjoint
+ * and they may be built concurrently in one UnionFindSimple. But
+ * merging the border edges after the bands tests them against
+ * clusters that have already grown as large as their band allows,
+ * and so have a much tighter threshold than when the same edges come
+ * up in the global order: segments that cross a border are split
+ * along it. splitBorderClusters() undoes the clusters that touch a
+ * border, so that their edges can be merged again in the global
+ * order (as FHSegment, FHFloatSegment and TagDetector.mergeBorders()
+ * do). Clusters away from the borders are kept as the bands built
+ * them, so the result can still differ from the serial one where
+ * they meet a re-merged cluster.
+ **/
+public final class SegmentBands
+{
+    /** Flags set by splitBorderClusters(). **/
+    public static final byte BORDER_CLUSTER = 1, BORDER_PIXEL = 2;
+
+    public final int width, height, nbands;
+
+    /** The edges of group g (0 &lt;= g &lt;= nbands) are
+     * edges[offsets[g]] to edges[offsets[g+1]-1]. Group nbands holds
+     * the border edges. **/
+    public final int offsets[];
+
+    public final long edges[];
+
+    // how the pixels are packed into each edge.
+    final int idaShift, idbShift;
+    final long indexMask;
+
+    SegmentBands(int width, int height, int nbands, int offsets[], long edges[],
+                 int idaShift, int idbShift, long indexMask)
+    {
+        this.idaShift = idaShift;
+        this.idbShift = idbShift;
+        this.indexMask = indexMask;
+        this.width = width;
+        this.height = height;
+        this.nbands = nbands;
+        this.offsets = offsets;
+        this.edges = edges;
+    }
+
+    /** Which band does row y belong to? **/
+    public static int getBand(int y, int height, int nbands)
+    {
+        return (int) (((long) y) * nbands / height);
+    }
+
+    /** The first row of band b (or height, if b == nbands). **/
+    public int getFirstRow(int b)
+    {
+        return (int) ((((long) b) * height + nbands - 1) / nbands);
+    }
+
+    /** Partition the first nedges values of edges[] into nbands
+     * bands. The result is written into out (which is allocated if
+     * null or too short, and must not be edges).
+     **/
+    public static SegmentBands partition(long edges[], int nedges,
+                                         int idaShift, int idbShift, long indexMask,
+                                         int width, int height, int nbands,
+                                         long out[])
+    {
+        nbands = Math.max(1, Math.min(nbands, height));
+
+        if (out == null || out.length < nedges)
+            out = new long[nedges];
+
+        assert(out != edges);
+
+        // the band of every row, to avoid a division per edge.
+        int rowBand[] = new int[height];
+        for (int y = 0; y < height; y++)
+            rowBand[y] = getBand(y, height, nbands);
+
+        // pass one: count. pass two: distribute.
+        int offsets[] = new int[nbands + 2];
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < nedges; i++) {
+                int ya = (int) ((edges[i]>>idaShift)&indexMask) / width;
+                int yb = (int) ((edges[i]>>idbShift)&indexMask) / width;
+
+                int g = (rowBand[ya] == rowBand[yb]) ? rowBand[ya] : nbands;
+
+                if (pass == 0)
+                    offsets[g + 1]++;
+                else
+                    out[offsets[g]++] = edges[i];
+            }
+
+            if (pass == 0) {
+                // accumulate.
+                for (int g = 1; g <= nbands + 1; g++)
+                    offsets[g] += offsets[g - 1];
+            } else {
+                // each offsets[g] has advanced to the start of group g+1.
+                for (int g = nbands + 1; g > 0; g--)
+                    offsets[g] = offsets[g - 1];
+                offsets[0] = 0;
+            }
+        }
+
+        return new SegmentBands(width, height, nbands, offsets, out, idaShift, idbShift, indexMask);
+    }
+
+    public int getNumBorderEdges()
+    {
+        return offsets[nbands + 1] - offsets[nbands];
+    }
+
+    /** Once each band's edges have been merged into uf, split every
+     * cluster touched by a border edge back into single pixels. The
+     * returned flags (flags itself, if it is non-null and large
+     * enough) have BORDER_PIXEL set for those pixels. The caller
+     * must then reset their per-cluster state, and merge every edge
+     * that touches one of them, in the global order. The border edges
+     * are among those edges, so they need no further processing. **/
+    public byte[] splitBorderClusters(final UnionFindSimple uf, byte flags[], ParallelFor pf)
+    {
+        if (flags == null || flags.length < width*height)
+            flags = new byte[width*height];
+        else
+            Arrays.fill(flags, 0, width*height, (byte) 0);
+
+        for (int i = offsets[nbands]; i < offsets[nbands+1]; i++) {
+            flags[uf.getRepresentative((int) ((edges[i]>>idaShift)&indexMask))] = BORDER_CLUSTER;
+            flags[uf.getRepresentative((int) ((edges[i]>>idbShift)&indexMask))] = BORDER_CLUSTER;
+        }
+
+        // Each band's clusters lie within its rows, so the bands can
+        // be split independently.
+        final byte fflags[] = flags;
+        ParallelFor.Task task = new ParallelFor.Task() {
+                public void run(int b0, int b1)
+                {
+                    for (int b = b0; b < b1; b++) {
+                        int i0 = getFirstRow(b)*width, i1 = getFirstRow(b+1)*width;
+
+                        for (int i = i0; i < i1; i++)
+                            if ((fflags[uf.getRepresentative(i)] & BORDER_CLUSTER) != 0)
+                                fflags[i] |= BORDER_PIXEL;
+
+                        for (int i = i0; i < i1; i++)
+                            if ((fflags[i] & BORDER_PIXEL) != 0)
+                                uf.reset(i);
+                    }
+                }
+            };
+
+        if (pf == null)
+            task.run(0, nbands);
+        else
+            pf.run(nbands, nbands, task);
+
+        return flags;
+    }
+}
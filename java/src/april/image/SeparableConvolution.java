@@ -0,0 +1,278 @@
+package april.image;
+
+import april.util.*;
+
+/** Convolves a FloatImage with a separable filter (e.g. a Gaussian),
+ * with the same centering and edge handling as
+ * FloatImage.filterFactoredCentered: the output is shifted by
+ * -f.length/2, and pixels beyond the edge of the image take the
+ * value of the nearest edge pixel.
+ *
+ * Both passes stream along rows: for each tap of the filter, a whole
+ * row (or block of columns) of outputs is updated at once, which
+ * keeps memory accesses sequential and lets the JIT vectorize the
+ * inner loop. The vertical pass works on blocks of blockWidth
+ * columns so that the filter's rows stay in cache. Edges are handled
+ * by padding each row, rather than by testing every tap. Either pass
+ * can be split across the threads of a ParallelFor.
+ *
+ * By default, sums are accumulated in double precision in the same
+ * order as SigProc.convolveSymmetricCentered, so the results are
+ * bit-for-bit identical to the straightforward implementation. If
+ * exact is false, sums are accumulated in float, and symmetric
+ * filters are folded (one multiply per pair of taps); this is
+ * faster, but the results differ in the last few bits.
+ *
+ * An instance keeps a scratch image between calls, and so must not
+ * be used by more than one thread at a time.
+ **/
+public class SeparableConvolution
+{
+    public final float fhoriz[], fvert[];
+
+    /** Accumulate in double precision, reproducing
+     * SigProc.convolveSymmetricCentered exactly. **/
+    public boolean exact = true;
+
+    /** The number of columns processed together in the vertical
+     * pass. The filter's rows of the block (fvert.length *
+     * blockWidth floats) should fit comfortably in the L1 cache. **/
+    public int blockWidth = 256;
+
+    // the output of the horizontal pass.
+    float tmp[];
+
+    public SeparableConvolution(float fhoriz[], float fvert[])
+    {
+        this.fhoriz = fhoriz;
+        this.fvert = fvert;
+    }
+
+    /** Convolve im, writing the result into out (which is allocated
+     * if null, and must not be im.d). pf may be null. **/
+    public FloatImage apply(FloatImage im, float out[], ParallelFor pf)
+    {
+        final int width = im.width, height = im.height;
+        final float in[] = im.d;
+
+        if (out == null)
+            out = new float[width*height];
+
+        assert(out.length == width*height && out != in);
+
+        if (tmp == null || tmp.length != width*height)
+            tmp = new float[width*height];
+
+        final float r[] = out;
+        final float t[] = tmp;
+
+        ParallelFor.Task horiz = new ParallelFor.Task() {
+                public void run(int y0, int y1)
+                {
+                    horizontal(in, width, y0, y1, t);
+                }
+            };
+
+        ParallelFor.Task vert = new ParallelFor.Task() {
+                public void run(int y0, int y1)
+                {
+                    vertical(t, width, height, y0, y1, r);
+                }
+            };
+
+        if (pf == null) {
+            horiz.run(0, height);
+            vert.run(0, height);
+        } else {
+            pf.run(height, horiz);
+            pf.run(height, vert);
+        }
+
+        return new FloatImage(width, height, out);
+    }
+
+    /** Is f odd in length and symmetric about its center? **/
+    static boolean isSymmetric(float f[])
+    {
+        if ((f.length & 1) == 0)
+            return false;
+
+        for (int i = 0; i < f.length/2; i++)
+            if (f[i] != f[f.length - 1 - i])
+                return false;
+
+        return true;
+    }
+
+    /** Filter rows [y0, y1) of in with fhoriz. **/
+    void horizontal(float in[], int width, int y0, int y1, float out[])
+    {
+        float f[] = fhoriz;
+        int n = f.length;
+
+        if (width < n) {
+            // SigProc's edge handling is irregular when the filter
+            // is longer than the row; defer to it.
+            for (int y = y0; y < y1; y++)
+                SigProc.convolveSymmetricCentered(in, y*width, width, f, out, y*width);
+            return;
+        }
+
+        // pad[t] = in[clamp(t - left)], so output o uses pad[o + n - 1 - j] for tap j.
+        int left = n - 1 - n/2;
+        float pad[] = new float[width + n - 1];
+
+        boolean symmetric = !exact && isSymmetric(f);
+        double dacc[] = exact ? new double[width] : null;
+        float facc[] = exact ? null : new float[width];
+
+        for (int y = y0; y < y1; y++) {
+            int rowoff = y*width;
+
+            for (int i = 0; i < left; i++)
+                pad[i] = in[rowoff];
+            System.arraycopy(in, rowoff, pad, left, width);
+            for (int i = left + width; i < pad.length; i++)
+                pad[i] = in[rowoff + width - 1];
+
+            if (exact) {
+                for (int o = 0; o < width; o++)
+                    dacc[o] = 0;
+
+                for (int j = 0; j < n; j++) {
+                    float fj = f[j];
+                    int off = n - 1 - j;
+                    for (int o = 0; o < width; o++)
+                        dacc[o] += pad[o + off] * fj;
+                }
+
+                for (int o = 0; o < width; o++)
+                    out[rowoff + o] = (float) dacc[o];
+
+            } else if (symmetric) {
+                int h = n/2;
+                float fc = f[h];
+
+                for (int o = 0; o < width; o++)
+                    facc[o] = pad[o + h] * fc;
+
+                for (int k = 1; k <= h; k++) {
+                    float fk = f[h + k];
+                    for (int o = 0; o < width; o++)
+                        facc[o] += fk * (pad[o + h - k] + pad[o + h + k]);
+                }
+
+                System.arraycopy(facc, 0, out, rowoff, width);
+
+            } else {
+                for (int o = 0; o < width; o++)
+                    facc[o] = 0;
+
+                for (int j = 0; j < n; j++) {
+                    float fj = f[j];
+                    int off = n - 1 - j;
+                    for (int o = 0; o < width; o++)
+                        facc[o] += pad[o + off] * fj;
+                }
+
+                System.arraycopy(facc, 0, out, rowoff, width);
+            }
+        }
+    }
+
+    /** Compute rows [y0, y1) of the output by filtering the columns
+     * of in with fvert. **/
+    void vertical(float in[], int width, int height, int y0, int y1, float out[])
+    {
+        float f[] = fvert;
+        int n = f.length;
+
+        if (height < n) {
+            // as above, but this rarely happens, so simply filter
+            // every column (and keep just our rows).
+            float col[] = new float[height];
+            float res[] = new float[height];
+
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++)
+                    col[y] = in[y*width + x];
+
+                SigProc.convolveSymmetricCentered(col, 0, height, f, res, 0);
+
+                for (int y = y0; y < y1; y++)
+                    out[y*width + x] = res[y];
+            }
+            return;
+        }
+
+        // output row o uses input row clamp(o + n/2 - j) for tap j.
+        int bw = Math.max(1, Math.min(blockWidth, width));
+        int h = n/2;
+
+        boolean symmetric = !exact && isSymmetric(f);
+        double dacc[] = exact ? new double[bw] : null;
+        float facc[] = exact ? null : new float[bw];
+
+        for (int x0 = 0; x0 < width; x0 += bw) {
+            int nx = Math.min(bw, width - x0);
+
+            for (int o = y0; o < y1; o++) {
+                int outoff = o*width + x0;
+
+                if (exact) {
+                    for (int x = 0; x < nx; x++)
+                        dacc[x] = 0;
+
+                    for (int j = 0; j < n; j++) {
+                        float fj = f[j];
+                        int rowoff = clamp(o + h - j, height)*width + x0;
+                        for (int x = 0; x < nx; x++)
+                            dacc[x] += in[rowoff + x] * fj;
+                    }
+
+                    for (int x = 0; x < nx; x++)
+                        out[outoff + x] = (float) dacc[x];
+
+                } else if (symmetric) {
+                    float fc = f[h];
+                    int rowoff = o*width + x0;
+
+                    for (int x = 0; x < nx; x++)
+                        facc[x] = in[rowoff + x] * fc;
+
+                    for (int k = 1; k <= h; k++) {
+                        float fk = f[h + k];
+                        int upoff = clamp(o - k, height)*width + x0;
+                        int downoff = clamp(o + k, height)*width + x0;
+                        for (int x = 0; x < nx; x++)
+                            facc[x] += fk * (in[upoff + x] + in[downoff + x]);
+                    }
+
+                    System.arraycopy(facc, 0, out, outoff, nx);
+
+                } else {
+                    for (int x = 0; x < nx; x++)
+                        facc[x] = 0;
+
+                    for (int j = 0; j < n; j++) {
+                        float fj = f[j];
+                        int rowoff = clamp(o + h - j, height)*width + x0;
+                        for (int x = 0; x < nx; x++)
+                            facc[x] += in[rowoff + x] * fj;
+                    }
+
+                    System.arraycopy(facc, 0, out, outoff, nx);
+                }
+            }
+        }
+    }
+
+    static final int clamp(int i, int n)
+    {
+        if (i < 0)
+            return 0;
+        if (i >= n)
+            return n - 1;
+        return i;
+    }
+}
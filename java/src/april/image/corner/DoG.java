@@ -2,11 +2,18 @@ package april.image.corner;
 
 import april.jmat.*;
 import april.image.*;
+import april.util.*;
 
 public class DoG
 {
     double sigma1, sigma2;
 
+    /** Blur in single precision (see SeparableConvolution.exact). **/
+    public boolean fastFilter = false;
+
+    /** If non-null, the blurs are split across these threads. **/
+    public ParallelFor pool;
+
     public DoG(double sigma1, double sigma2)
     {
         this.sigma1 = sigma1;
@@ -24,8 +31,13 @@ public class DoG
         float f1[] = SigProc.makeGaussianFilter(sigma1, f1sz);
         float f2[] = SigProc.makeGaussianFilter(sigma2, f2sz);
 
-        FloatImage resp1 = data.filterFactoredCentered(f1, f1);
-        FloatImage resp2 = data.filterFactoredCentered(f2, f2);
+        SeparableConvolution conv1 = new SeparableConvolution(f1, f1);
+        SeparableConvolution conv2 = new SeparableConvolution(f2, f2);
+        conv1.exact = !fastFilter;
+        conv2.exact = !fastFilter;
+
+        FloatImage resp1 = conv1.apply(data, null, pool);
+        FloatImage resp2 = conv2.apply(data, null, pool);
 
         FloatImage response = resp1.subtract(resp2).abs();
         return response;
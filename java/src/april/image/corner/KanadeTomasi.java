@@ -2,6 +2,7 @@ package april.image.corner;
 
 import april.jmat.*;
 import april.image.*;
+import april.util.*;
 
 public class KanadeTomasi
 {
@@ -9,6 +10,12 @@ public class KanadeTomasi
     double sigma;
     int scale;
 
+    /** Blur in single precision (see SeparableConvolution.exact). **/
+    public boolean fastFilter = false;
+
+    /** If non-null, the blurs are split across these threads. **/
+    public ParallelFor pool;
+
     /**
      * @param scale controls the distance used to compute
      * gradients. (classically, should be 1. But larger numbers are
@@ -79,9 +86,12 @@ public class KanadeTomasi
         int fsz = ((int) Math.max(3, 3*sigma)) | 1;
         float gaussian[] = SigProc.makeGaussianFilter(sigma, fsz);
 
-        fimIx2 = fimIx2.filterFactoredCentered(gaussian, gaussian);
-        fimIxIy = fimIxIy.filterFactoredCentered(gaussian, gaussian);
-        fimIy2 = fimIy2.filterFactoredCentered(gaussian, gaussian);
+        SeparableConvolution conv = new SeparableConvolution(gaussian, gaussian);
+        conv.exact = !fastFilter;
+
+        fimIx2 = conv.apply(fimIx2, null, pool);
+        fimIxIy = conv.apply(fimIxIy, null, pool);
+        fimIy2 = conv.apply(fimIy2, null, pool);
 
         ///////////////////////////////////////////////
         // Compute filter response.
@@ -0,0 +1,355 @@
+package april.jmat;
+
+import java.util.*;
+
+/** Block-sparse Cholesky decomposition A = L*L', for matrices made of
+ * small dense blocks such as the normal equations of a pose graph.
+ *
+ * Like SparseCholesky, the constructor performs the symbolic analysis
+ * and factor() the numeric factorization, in place and without
+ * allocating, so that a sequence of matrices with the same pattern can
+ * be factored cheaply. The difference is that the pattern is tracked
+ * per block rather than per entry: U = L' is a BlockSparseMatrix with
+ * the same blocking as A, each block row of U is factored as a dense
+ * unit, and its contribution to the later block rows is applied block
+ * by block. (Each block row is in effect a supernode, whose entries
+ * all share one column pattern.) There is one index per block instead
+ * of one per entry, and the inner loops run over contiguous arrays.
+ *
+ * The blocks' values are kept even where they happen to be zero, so U
+ * usually has more non-zeros than the factor computed by
+ * SparseCholesky, and the results differ from it by rounding error.
+ **/
+public class BlockCholesky
+{
+    /** The factor. Before calling factor(), it must hold the upper
+     * (block) triangle of A, with zeros in the fill-in blocks. The
+     * lower triangle of the diagonal blocks is ignored. **/
+    public final BlockSparseMatrix U;
+
+    boolean isSpd;
+
+    /** Analyze a matrix with the given blocks, whose upper block
+     * triangle has the given pattern: block row i has non-zero blocks
+     * in the block columns acols[astart[i]] to acols[astart[i+1]-1],
+     * all of which must be at least i. **/
+    public BlockCholesky(int blockSize[], int astart[], int acols[])
+    {
+        this(blockSize, SparseCholesky.computePattern(blockSize.length, astart, acols));
+    }
+
+    /** Factor A, whose rows and columns are divided into blocks of the
+     * given sizes. **/
+    public BlockCholesky(Matrix A, int blockSize[])
+    {
+        this(blockSize, computePattern(A, blockSize));
+
+        int n = U.getRowDimension();
+        if (A.getRowDimension() != n || A.getColumnDimension() != n)
+            throw new IllegalArgumentException("Matrix dimensions must agree with the blocks.");
+
+        int blockOf[] = makeBlockOf(blockSize);
+
+        for (int row = 0; row < n; row++) {
+            int i = blockOf[row];
+            Vec v = A.getRow(row);
+
+            if (v instanceof CSRVec) {
+                CSRVec cv = (CSRVec) v;
+                for (int k = 0; k < cv.nz; k++)
+                    set(i, row, blockOf[cv.indices[k]], cv.indices[k], cv.values[k]);
+            } else {
+                for (int col = U.blockStart[i]; col < n; col++)
+                    set(i, row, blockOf[col], col, v.get(col));
+            }
+        }
+
+        factor();
+    }
+
+    private BlockCholesky(int blockSize[], int rowCols[][])
+    {
+        int nblocks = blockSize.length;
+
+        int rowStart[] = new int[nblocks+1];
+        for (int i = 0; i < nblocks; i++)
+            rowStart[i+1] = rowStart[i] + rowCols[i].length;
+
+        int cols[] = new int[rowStart[nblocks]];
+        for (int i = 0; i < nblocks; i++)
+            System.arraycopy(rowCols[i], 0, cols, rowStart[i], rowCols[i].length);
+
+        U = new BlockSparseMatrix(blockSize, rowStart, cols);
+    }
+
+    /** The block containing each scalar row. **/
+    static int[] makeBlockOf(int blockSize[])
+    {
+        int n = 0;
+        for (int i = 0; i < blockSize.length; i++)
+            n += blockSize[i];
+
+        int blockOf[] = new int[n];
+        int pos = 0;
+        for (int i = 0; i < blockSize.length; i++)
+            for (int r = 0; r < blockSize[i]; r++)
+                blockOf[pos++] = i;
+
+        return blockOf;
+    }
+
+    /** The block pattern of U for the matrix A. **/
+    static int[][] computePattern(Matrix A, int blockSize[])
+    {
+        int nblocks = blockSize.length;
+        int blockOf[] = makeBlockOf(blockSize);
+        int n = blockOf.length;
+
+        // the blocks of the upper block triangle, with repeats.
+        int astart[] = new int[nblocks+1];
+        int acols[] = new int[16];
+        int mark[] = new int[nblocks];
+        Arrays.fill(mark, -1);
+
+        int row = 0;
+        for (int i = 0; i < nblocks; i++) {
+            astart[i+1] = astart[i];
+
+            for (int r = 0; r < blockSize[i]; r++, row++) {
+                Vec v = A.getRow(row);
+
+                if (v instanceof CSRVec) {
+                    CSRVec cv = (CSRVec) v;
+                    for (int k = 0; k < cv.nz; k++) {
+                        int j = blockOf[cv.indices[k]];
+                        if (j > i && mark[j] != i && cv.values[k] != 0) {
+                            mark[j] = i;
+                            if (astart[i+1] == acols.length)
+                                acols = Arrays.copyOf(acols, 2*acols.length);
+                            acols[astart[i+1]++] = j;
+                        }
+                    }
+                } else {
+                    for (int col = 0; col < n; col++) {
+                        int j = blockOf[col];
+                        if (j > i && mark[j] != i && v.get(col) != 0) {
+                            mark[j] = i;
+                            if (astart[i+1] == acols.length)
+                                acols = Arrays.copyOf(acols, 2*acols.length);
+                            acols[astart[i+1]++] = j;
+                        }
+                    }
+                }
+            }
+        }
+
+        return SparseCholesky.computePattern(nblocks, astart, acols);
+    }
+
+    private void set(int i, int row, int j, int col, double v)
+    {
+        if (j < i || v == 0)
+            return;
+
+        int k = U.find(i, j);
+        U.values[U.valueStart[k] + (row - U.blockStart[i])*U.blockSize[j] + col - U.blockStart[j]] = v;
+    }
+
+    /** The number of non-zeros in L, counting all of the entries in
+     * each block. **/
+    public int getNz()
+    {
+        return U.getNz();
+    }
+
+    /** Factor the matrix whose upper block triangle is in U,
+     * overwriting it with the factor. **/
+    public void factor()
+    {
+        int nblocks = U.blockSize.length;
+        int blockSize[] = U.blockSize, rowStart[] = U.rowStart, cols[] = U.cols;
+        int valueStart[] = U.valueStart;
+        double v[] = U.values;
+
+        isSpd = true;
+
+        for (int i = 0; i < nblocks; i++) {
+            int di = blockSize[i];
+            int k0 = rowStart[i], k1 = rowStart[i+1];
+
+            // the diagonal block comes first.
+            int diag = valueStart[k0];
+
+            // Factor the block row as di dense rows: each row is
+            // scaled by its diagonal, then subtracted from the later
+            // rows of the block. This computes the block's (upper
+            // triangular) factor R and R'^-1 times the other blocks.
+            for (int r = 0; r < di; r++) {
+                double d = Math.sqrt(v[diag + r*di + r]);
+                isSpd &= (d>0);
+
+                double scale = 1.0/d;
+                for (int c = r; c < di; c++)
+                    v[diag + r*di + c] *= scale;
+
+                for (int k = k0 + 1; k < k1; k++) {
+                    int dj = blockSize[cols[k]];
+                    int off = valueStart[k] + r*dj;
+                    for (int c = 0; c < dj; c++)
+                        v[off + c] *= scale;
+                }
+
+                for (int s = r + 1; s < di; s++) {
+                    double t = -v[diag + r*di + s];
+
+                    for (int c = s; c < di; c++)
+                        v[diag + s*di + c] += v[diag + r*di + c]*t;
+
+                    for (int k = k0 + 1; k < k1; k++) {
+                        int dj = blockSize[cols[k]];
+                        int src = valueStart[k] + r*dj, dst = valueStart[k] + s*dj;
+                        for (int c = 0; c < dj; c++)
+                            v[dst + c] += v[src + c]*t;
+                    }
+                }
+            }
+
+            for (int r = 1; r < di; r++)
+                for (int c = 0; c < r; c++)
+                    v[diag + r*di + c] = 0;
+
+            // U(j,l) -= U(i,j)'*U(i,l) for each pair of blocks j <= l
+            // in this block row. The pattern of block row j contains
+            // that of block row i, from column j on.
+            for (int p = k0 + 1; p < k1; p++) {
+                int j = cols[p], dj = blockSize[j];
+                int q = rowStart[j];
+
+                for (int pl = p; pl < k1; pl++) {
+                    int l = cols[pl], dl = blockSize[l];
+                    while (cols[q] < l)
+                        q++;
+
+                    int dst = valueStart[q];
+                    for (int r = 0; r < di; r++) {
+                        int srcj = valueStart[p] + r*dj, srcl = valueStart[pl] + r*dl;
+
+                        for (int a = 0; a < dj; a++) {
+                            double s = v[srcj + a];
+                            if (s == 0)
+                                continue;
+
+                            int off = dst + a*dl;
+                            for (int c = 0; c < dl; c++)
+                                v[off + c] -= s*v[srcl + c];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public boolean isSPD()
+    {
+        return isSpd;
+    }
+
+    /** Solve A*x = b, writing the result into x (which may be
+     * b). Nothing is allocated: the intermediate solution is kept in
+     * x. **/
+    public void solve(double b[], double x[])
+    {
+        if (!isSpd)
+            throw new RuntimeException("Matrix is not SPD");
+
+        int nblocks = U.blockSize.length;
+        int blockSize[] = U.blockSize, blockStart[] = U.blockStart;
+        int rowStart[] = U.rowStart, cols[] = U.cols, valueStart[] = U.valueStart;
+        double v[] = U.values;
+
+        // Solve U'*y = b, with y in x, pushing each block of y into
+        // the later blocks as soon as it is known.
+        double y[] = x;
+        if (x != b)
+            System.arraycopy(b, 0, x, 0, blockStart[nblocks]);
+
+        for (int i = 0; i < nblocks; i++) {
+            int di = blockSize[i], i0 = blockStart[i];
+            int diag = valueStart[rowStart[i]];
+
+            for (int r = 0; r < di; r++) {
+                double acc = y[i0 + r];
+                for (int s = 0; s < r; s++)
+                    acc -= v[diag + s*di + r]*y[i0 + s];
+                y[i0 + r] = acc / v[diag + r*di + r];
+            }
+
+            for (int k = rowStart[i] + 1; k < rowStart[i+1]; k++) {
+                int j = cols[k], dj = blockSize[j], j0 = blockStart[j];
+
+                for (int r = 0; r < di; r++) {
+                    double yr = y[i0 + r];
+                    int off = valueStart[k] + r*dj;
+                    for (int c = 0; c < dj; c++)
+                        y[j0 + c] -= v[off + c]*yr;
+                }
+            }
+        }
+
+        // Solve U*x = y, overwriting y from the end: the later
+        // blocks of x are known, and within a block, y[i0 + r] is
+        // replaced by the rest of its row before x[i0 + r] is.
+        for (int i = nblocks - 1; i >= 0; i--) {
+            int di = blockSize[i], i0 = blockStart[i];
+            int diag = valueStart[rowStart[i]];
+
+            for (int r = 0; r < di; r++) {
+                double acc = y[i0 + r];
+
+                for (int k = rowStart[i] + 1; k < rowStart[i+1]; k++) {
+                    int j = cols[k], dj = blockSize[j], j0 = blockStart[j];
+                    int off = valueStart[k] + r*dj;
+                    for (int c = 0; c < dj; c++)
+                        acc -= v[off + c]*x[j0 + c];
+                }
+                y[i0 + r] = acc;
+            }
+
+            for (int r = di - 1; r >= 0; r--) {
+                double acc = y[i0 + r];
+                for (int c = r + 1; c < di; c++)
+                    acc -= v[diag + r*di + c]*x[i0 + c];
+                x[i0 + r] = acc / v[diag + r*di + r];
+            }
+        }
+    }
+
+    /** Solve A*X = B. **/
+    public Matrix solve(Matrix B)
+    {
+        int n = U.getRowDimension();
+        if (B.getRowDimension() != n)
+            throw new IllegalArgumentException("Matrix row dimensions must agree.");
+
+        Matrix X = new Matrix(n, B.getColumnDimension());
+        double x[] = new double[n];
+
+        for (int cidx = 0; cidx < B.getColumnDimension(); cidx++) {
+            for (int ridx = 0; ridx < n; ridx++)
+                x[ridx] = B.get(ridx, cidx);
+
+            solve(x, x);
+
+            for (int ridx = 0; ridx < n; ridx++)
+                X.set(ridx, cidx, x[ridx]);
+        }
+
+        return X;
+    }
+
+    /** Create L as a sparse Matrix. **/
+    public Matrix getL()
+    {
+        return U.toMatrix().transpose();
+    }
+}
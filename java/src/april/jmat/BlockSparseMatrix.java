@@ -0,0 +1,135 @@
+package april.jmat;
+
+import java.util.*;
+
+/** A sparse matrix made of small dense blocks, stored in "block
+ * compressed sparse row" form. The rows and the columns are divided
+ * into the same blocks, which may have different sizes; only the
+ * non-zero blocks are stored, each as a dense row-major array.
+ *
+ * This suits the matrices of graph optimization problems, which
+ * consist of one block per pair of connected nodes (3x3 for
+ * GXYTNodes, 6x6 for 3D poses): the per-block overhead of the
+ * indices is shared by all of the block's entries, and operations on
+ * a block are simple loops over a contiguous array.
+ *
+ * The pattern of blocks is fixed when the matrix is created; only
+ * the values may change.
+ **/
+public class BlockSparseMatrix
+{
+    /** The size of each block row (and column), and the index of its
+     * first scalar row; blockStart has one more element, the number
+     * of scalar rows. **/
+    public final int blockSize[], blockStart[];
+
+    /** The blocks of block row i are k = rowStart[i] to
+     * rowStart[i+1]-1, in order of increasing block column cols[k].
+     * The entry (r, c) of block k is values[valueStart[k] + r *
+     * blockSize[cols[k]] + c]. **/
+    public final int rowStart[], cols[], valueStart[];
+
+    public final double values[];
+
+    /** Create an all-zero matrix with the given blocks. The columns
+     * of each block row must be sorted. **/
+    public BlockSparseMatrix(int blockSize[], int rowStart[], int cols[])
+    {
+        int nblocks = blockSize.length;
+
+        this.blockSize = blockSize;
+        this.rowStart = rowStart;
+        this.cols = cols;
+
+        blockStart = new int[nblocks + 1];
+        for (int i = 0; i < nblocks; i++)
+            blockStart[i+1] = blockStart[i] + blockSize[i];
+
+        valueStart = new int[cols.length + 1];
+        for (int i = 0; i < nblocks; i++) {
+            for (int k = rowStart[i]; k < rowStart[i+1]; k++) {
+                assert(k == rowStart[i] || cols[k] > cols[k-1]);
+                valueStart[k+1] = valueStart[k] + blockSize[i]*blockSize[cols[k]];
+            }
+        }
+
+        values = new double[valueStart[cols.length]];
+    }
+
+    /** The number of block rows (and columns). **/
+    public int getNumBlocks()
+    {
+        return blockSize.length;
+    }
+
+    /** The number of scalar rows (and columns). **/
+    public int getRowDimension()
+    {
+        return blockStart[blockSize.length];
+    }
+
+    /** The number of scalar entries stored. **/
+    public int getNz()
+    {
+        return values.length;
+    }
+
+    /** The index of block (i, j), or -1 if it is not stored. **/
+    public int find(int i, int j)
+    {
+        int k = Arrays.binarySearch(cols, rowStart[i], rowStart[i+1], j);
+        return (k >= 0) ? k : -1;
+    }
+
+    /** The block containing scalar row (or column) idx. **/
+    public int getBlock(int idx)
+    {
+        int k = Arrays.binarySearch(blockStart, idx);
+        if (k < 0)
+            return -k - 2;
+
+        // skip any empty blocks.
+        while (blockSize[k] == 0)
+            k++;
+        return k;
+    }
+
+    /** Scalar entry (row, col), which is zero if its block is not
+     * stored. **/
+    public double get(int row, int col)
+    {
+        int i = getBlock(row), j = getBlock(col);
+        int k = find(i, j);
+        if (k < 0)
+            return 0;
+
+        return values[valueStart[k] + (row - blockStart[i])*blockSize[j] + col - blockStart[j]];
+    }
+
+    public void clear()
+    {
+        Arrays.fill(values, 0);
+    }
+
+    /** Convert to a (sparse) Matrix, containing only the stored
+     * blocks. **/
+    public Matrix toMatrix()
+    {
+        int n = getRowDimension();
+        Matrix M = new Matrix(n, n, Matrix.SPARSE);
+
+        for (int i = 0; i < blockSize.length; i++) {
+            for (int r = 0; r < blockSize[i]; r++) {
+                for (int k = rowStart[i]; k < rowStart[i+1]; k++) {
+                    int j = cols[k];
+                    int off = valueStart[k] + r*blockSize[j];
+
+                    for (int c = 0; c < blockSize[j]; c++)
+                        M.set(blockStart[i] + r, blockStart[j] + c, values[off + c]);
+                }
+            }
+        }
+
+        return M;
+    }
+}
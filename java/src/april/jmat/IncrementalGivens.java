@@ -18,6 +18,24 @@ public class IncrementalGivens
         this.ncols = ncols;
     }
 
+    /** Start from an existing triangularization: R is square and
+     * upper triangular (such as L' from the Cholesky decomposition of
+     * A'A), and d the corresponding right-hand side. **/
+    public IncrementalGivens(Matrix R, double d[])
+    {
+        this.ncols = R.getColumnDimension();
+
+        ensureCapacity(R.getRowDimension());
+
+        for (int i = 0; i < R.getRowDimension(); i++) {
+            Vec v = R.getRow(i);
+            rows[i] = (v instanceof CSRVec) ? (CSRVec) v.copy() : makeCSR(v.getDoubles());
+            b[i] = d[i];
+        }
+
+        nrows = R.getRowDimension();
+    }
+
     void ensureCapacity(int minsize)
     {
         if (minsize < rows.length)
@@ -38,11 +56,42 @@ public class IncrementalGivens
         b = newb;
     }
 
+    public int getNumRows()
+    {
+        return nrows;
+    }
+
+    public int getNumColumns()
+    {
+        return ncols;
+    }
+
     public int getNumRotations()
     {
         return nrotations;
     }
 
+    /** True if every column has a pivot, i.e., the first non-zero
+     * of row i is in column i for every column i, so that solve() is
+     * well defined. Rows that were rotated to zero (such as those of
+     * a redundant constraint) stay in place, so nrows >= ncols does
+     * not imply this: after columns are added, such a row may sit
+     * where their pivot belongs until a row constraining them
+     * arrives. **/
+    public boolean isFullRank()
+    {
+        if (nrows < ncols)
+            return false;
+
+        for (int i = 0; i < ncols; i++) {
+            CSRVec row = rows[i];
+            if (row.nz == 0 || row.indices[0] != i || row.values[0] == 0)
+                return false;
+        }
+
+        return true;
+    }
+
     public int getNz()
     {
         int nz = 0;
@@ -79,8 +128,8 @@ public class IncrementalGivens
     {
         ncols += n;
 
-        for (CSRVec csr : rows)
-            csr.resize(ncols);
+        for (int i = 0; i < nrows; i++)
+            rows[i].resize(ncols);
     }
 
     void rotate(CSRVec csr0, CSRVec csr1, double s, double c, int thiscol)
@@ -253,15 +302,14 @@ public class IncrementalGivens
         CSRVec csr1 = rows[thisrow];
         csr1.filterZeros();
 
-        for (int thiscol = 0; thiscol < thisrow; thiscol++) {
-            //	while (csr1.nz > 0 && csr1.indices[0] < thisrow) {
-
-            //	    int thiscol = csr1.indices[0];
-            //	    double y = csr1.values[0];
+        // Each rotation zeros the first non-zero of the new row, and
+        // can only create non-zeros to its right (the rows above are
+        // upper triangular), so visit just the non-zeros rather than
+        // every column.
+        while (csr1.nz > 0 && csr1.indices[0] < thisrow) {
 
-            double y = csr1.get(thiscol);
-            if (y==0)
-                continue;
+            int thiscol = csr1.indices[0];
+            double y = csr1.values[0];
 
             nrotations++;
 
@@ -277,21 +325,8 @@ public class IncrementalGivens
             double s = -y/mag;
             double c = x/mag;
 
-            CSRVec csr0a = (CSRVec) csr0.copy();
-            CSRVec csr1a = (CSRVec) csr1.copy();
-            //	    rotate(csr0a, csr1a, s, c, thiscol);
             rotate(csr0, csr1, s, c, thiscol);
 
-            /*
-              for (int i = 0; i < csr0.size(); i++)
-              if (Math.abs(csr0.get(i) - csr0a.get(i)) > 0.00001)
-              assert(false);
-
-              for (int i = 0; i < csr1.size(); i++)
-              if (Math.abs(csr1.get(i) - csr1a.get(i)) > 0.00001)
-              assert(false);
-            */
-
             // update RHS
             double b0 = b[prevrow];
             double b1 = b[thisrow];
@@ -0,0 +1,253 @@
+package april.jmat;
+
+import java.util.*;
+
+/** Sparse Cholesky decomposition A = L*L' that separates the symbolic
+ * analysis from the numeric factorization.
+ *
+ * The constructor computes the non-zero pattern of U = L' (the
+ * pattern of A's upper triangle plus its fill-in) from the pattern of
+ * A alone. Any number of matrices with (a subset of) that pattern can
+ * then be factored with factor(), which works in place on a fixed
+ * array of values and allocates nothing. This is useful when solving
+ * a sequence of problems with the same structure, such as the
+ * iterations of a non-linear least-squares solver.
+ *
+ * The numeric factorization performs the same operations, in the
+ * same order, as CholeskyDecomposition, and solve() the same as
+ * CholeskyDecomposition.solve(), so the results are identical.
+ **/
+public class SparseCholesky
+{
+    final int n;
+
+    /** The entries of row i of U are at positions rowStart[i] to
+     * rowStart[i+1]-1 of cols and values, in order of increasing
+     * column. The first entry of each row is the diagonal. **/
+    public final int rowStart[], cols[];
+
+    /** The values of U. Before calling factor(), these must hold the
+     * upper triangle of A (with zeros in the fill-in positions). **/
+    public final double values[];
+
+    // the columns of U, i.e. the rows of L: the entries of row i of L
+    // are values[lpos[k]], in column lcols[k], for lstart[i] <= k <
+    // lstart[i+1], in order of increasing column.
+    final int lstart[], lpos[], lcols[];
+
+    boolean isSpd;
+
+    /** Analyze a matrix whose upper triangle has the given pattern:
+     * row i has non-zeros in the columns acols[astart[i]] to
+     * acols[astart[i+1]-1], all of which must be at least i. (They
+     * need not be sorted, and the diagonal need not be present.) **/
+    public SparseCholesky(int n, int astart[], int acols[])
+    {
+        this.n = n;
+
+        int rowCols[][] = computePattern(n, astart, acols);
+
+        int nnz = 0;
+        for (int i = 0; i < n; i++)
+            nnz += rowCols[i].length;
+
+        rowStart = new int[n+1];
+        cols = new int[nnz];
+        values = new double[nnz];
+
+        // count the entries in each row of L as we go.
+        int lcount[] = new int[n+1];
+
+        for (int i = 0; i < n; i++) {
+            rowStart[i+1] = rowStart[i] + rowCols[i].length;
+            System.arraycopy(rowCols[i], 0, cols, rowStart[i], rowCols[i].length);
+
+            for (int k = 0; k < rowCols[i].length; k++)
+                lcount[rowCols[i][k]+1]++;
+            rowCols[i] = null;
+        }
+
+        lstart = new int[n+1];
+        for (int i = 0; i < n; i++)
+            lstart[i+1] = lstart[i] + lcount[i+1];
+
+        // visiting the rows of U in order yields each row of L in
+        // order of increasing column.
+        lpos = new int[nnz];
+        lcols = new int[nnz];
+        int fill[] = Arrays.copyOf(lstart, n);
+        for (int i = 0; i < n; i++) {
+            for (int k = rowStart[i]; k < rowStart[i+1]; k++) {
+                int l = fill[cols[k]]++;
+                lpos[l] = k;
+                lcols[l] = i;
+            }
+        }
+    }
+
+    /** The pattern of each row of U, in ascending order (the
+     * diagonal first), given the pattern of A's upper triangle as for
+     * the constructor. **/
+    static int[][] computePattern(int n, int astart[], int acols[])
+    {
+        // the rows of U form a tree (the elimination tree): the
+        // pattern of row i is its pattern in A plus the patterns of
+        // the rows whose first off-diagonal entry is i (its children
+        // in the tree), restricted to columns > i.
+        int firstChild[] = new int[n], nextSibling[] = new int[n];
+        Arrays.fill(firstChild, -1);
+
+        int mark[] = new int[n];
+        Arrays.fill(mark, -1);
+
+        int rowCols[][] = new int[n][];
+        int buf[] = new int[16];
+
+        for (int i = 0; i < n; i++) {
+            int len = 0;
+
+            buf[len++] = i;
+            mark[i] = i;
+
+            for (int k = astart[i]; k < astart[i+1]; k++) {
+                int j = acols[k];
+                assert(j >= i);
+
+                if (mark[j] != i) {
+                    mark[j] = i;
+                    if (len == buf.length)
+                        buf = Arrays.copyOf(buf, 2*len);
+                    buf[len++] = j;
+                }
+            }
+
+            for (int c = firstChild[i]; c >= 0; c = nextSibling[c]) {
+                int crow[] = rowCols[c];
+
+                // skip the child's diagonal.
+                for (int k = 1; k < crow.length; k++) {
+                    int j = crow[k];
+                    if (mark[j] != i) {
+                        mark[j] = i;
+                        if (len == buf.length)
+                            buf = Arrays.copyOf(buf, 2*len);
+                        buf[len++] = j;
+                    }
+                }
+            }
+
+            Arrays.sort(buf, 0, len);
+            rowCols[i] = Arrays.copyOf(buf, len);
+
+            // the parent of row i is its first off-diagonal column.
+            if (len > 1) {
+                nextSibling[i] = firstChild[buf[1]];
+                firstChild[buf[1]] = i;
+            }
+        }
+
+        return rowCols;
+    }
+
+    /** The number of non-zeros in L. **/
+    public int getNz()
+    {
+        return cols.length;
+    }
+
+    /** The position in values of U(row, col), or -1 if it is not in
+     * the pattern. **/
+    public int find(int row, int col)
+    {
+        int k = Arrays.binarySearch(cols, rowStart[row], rowStart[row+1], col);
+        return (k >= 0) ? k : -1;
+    }
+
+    /** Factor the matrix whose upper triangle is in values,
+     * overwriting it with U. **/
+    public void factor()
+    {
+        isSpd = true;
+
+        for (int i = 0; i < n; i++) {
+            int k0 = rowStart[i], k1 = rowStart[i+1];
+
+            double d = Math.sqrt(values[k0]);
+            isSpd &= (d>0);
+
+            double scale = 1.0/d;
+            for (int k = k0; k < k1; k++)
+                values[k] *= scale;
+
+            // subtract s * (row i) from each later row j, where s =
+            // U(i,j). The pattern of row j contains that of row i
+            // (from column j on).
+            for (int p = k0 + 1; p < k1; p++) {
+                int j = cols[p];
+                double s = -values[p];
+
+                int q = rowStart[j];
+                for (int k = p; k < k1; k++) {
+                    int c = cols[k];
+                    while (cols[q] < c)
+                        q++;
+                    values[q] += values[k]*s;
+                }
+            }
+        }
+    }
+
+    public boolean isSPD()
+    {
+        return isSpd;
+    }
+
+    /** Solve A*x = b, writing the result into x (which may be
+     * b). Nothing is allocated: the intermediate solution is kept in
+     * x. **/
+    public void solve(double b[], double x[])
+    {
+        if (!isSpd)
+            throw new RuntimeException("Matrix is not SPD");
+
+        // Solve L*y = b, with y in x: y[i] depends only on b[i] and
+        // the earlier entries of y. The last entry of each row of L
+        // is its diagonal.
+        for (int i = 0; i < n; i++) {
+            double acc = 0;
+            for (int k = lstart[i]; k < lstart[i+1] - 1; k++)
+                acc += values[lpos[k]]*x[lcols[k]];
+            x[i] = (b[i] - acc) / values[rowStart[i]];
+        }
+
+        // Solve L'*x = y, i.e., U*x = y, overwriting y from the end.
+        for (int i = n - 1; i >= 0; i--) {
+            double acc = 0;
+            for (int k = rowStart[i] + 1; k < rowStart[i+1]; k++)
+                acc += values[k]*x[cols[k]];
+            x[i] = (x[i] - acc) / values[rowStart[i]];
+        }
+    }
+
+    /** Create L as a sparse Matrix. **/
+    public Matrix getL()
+    {
+        Matrix L = new Matrix(n, n, Matrix.SPARSE);
+
+        for (int i = 0; i < n; i++) {
+            int nz = lstart[i+1] - lstart[i];
+            CSRVec v = new CSRVec(n, Math.max(1, nz));
+
+            for (int k = 0; k < nz; k++) {
+                v.indices[k] = lcols[lstart[i] + k];
+                v.values[k] = values[lpos[lstart[i] + k]];
+            }
+            v.nz = nz;
+            v.filterZeros();
+
+            L.setRow(i, v);
+        }
+
+        return L;
+    }
+}
@@ -0,0 +1,170 @@
+package april.tag;
+
+import java.awt.image.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Detects tags in many images concurrently, e.g. when processing a
+ * log offline or a set of calibration images. A bounded pool of
+ * worker threads each use their own TagDetector, configured with the
+ * parameters of a template detector. Results are always returned in
+ * the order of the input images.
+ **/
+public class BatchTagDetector
+{
+    /** The parameters of this detector are copied to the workers at
+     * the start of every batch; it is not used to process images. **/
+    public TagDetector template;
+
+    /** When processing an Iterator of images, at most this many
+     * images are held in memory (queued or in progress) at once. **/
+    public int maxInFlight;
+
+    final int nthreads;
+    final ExecutorService exec;
+    final LinkedBlockingQueue<TagDetector> idleDetectors = new LinkedBlockingQueue<TagDetector>();
+
+    /** Receives the detections for each image of a batch, in input order. **/
+    public interface Listener
+    {
+        public void detectionsReady(int index, BufferedImage im, ArrayList<TagDetection> detections);
+    }
+
+    public BatchTagDetector(TagFamily tf)
+    {
+        this(new TagDetector(tf), 0);
+    }
+
+    /** @param nthreads The number of worker threads (0 = one per
+     * available processor). **/
+    public BatchTagDetector(TagDetector template, int nthreads)
+    {
+        if (nthreads < 1)
+            nthreads = Runtime.getRuntime().availableProcessors();
+
+        this.template = template;
+        this.nthreads = nthreads;
+        this.maxInFlight = 4*nthreads;
+
+        for (int i = 0; i < nthreads; i++)
+            idleDetectors.add(new TagDetector(template.tagFamily));
+
+        exec = Executors.newFixedThreadPool(nthreads, new ThreadFactory() {
+                int count = 0;
+
+                public synchronized Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "BatchTagDetector worker "+(count++));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    /** Process every image in the list. If opticalCenter is null,
+     * the center of each image is used. **/
+    public ArrayList<ArrayList<TagDetection>> process(List<BufferedImage> images, double opticalCenter[])
+    {
+        final ArrayList<ArrayList<TagDetection>> results = new ArrayList<ArrayList<TagDetection>>();
+
+        process(images.iterator(), opticalCenter, new Listener() {
+                public void detectionsReady(int index, BufferedImage im, ArrayList<TagDetection> detections)
+                {
+                    results.add(detections);
+                }
+            });
+
+        return results;
+    }
+
+    /** Process images as they are produced by the iterator (which is
+     * only called from the calling thread). The listener is called
+     * from the calling thread, in input order, as soon as the
+     * detections for each image are available. Returns the number of
+     * images processed. **/
+    public int process(Iterator<BufferedImage> images, double opticalCenter[], Listener listener)
+    {
+        for (TagDetector td : idleDetectors)
+            td.copyParameters(template);
+
+        LinkedList<BufferedImage> pendingImages = new LinkedList<BufferedImage>();
+        LinkedList<Future<ArrayList<TagDetection>>> pendingResults = new LinkedList<Future<ArrayList<TagDetection>>>();
+
+        int nsubmitted = 0, ndelivered = 0;
+
+        try {
+            while (images.hasNext()) {
+                if (pendingResults.size() >= Math.max(1, maxInFlight)) {
+                    listener.detectionsReady(ndelivered++, pendingImages.removeFirst(),
+                                             getResult(pendingResults.removeFirst()));
+                }
+
+                BufferedImage im = images.next();
+                pendingImages.add(im);
+                pendingResults.add(exec.submit(new DetectTask(im, opticalCenter)));
+                nsubmitted++;
+            }
+
+            while (pendingResults.size() > 0) {
+                listener.detectionsReady(ndelivered++, pendingImages.removeFirst(),
+                                         getResult(pendingResults.removeFirst()));
+            }
+        } finally {
+            // if we're bailing out early, don't leave work behind.
+            for (Future<ArrayList<TagDetection>> f : pendingResults)
+                f.cancel(false);
+        }
+
+        return nsubmitted;
+    }
+
+    static ArrayList<TagDetection> getResult(Future<ArrayList<TagDetection>> f)
+    {
+        try {
+            return f.get();
+        } catch (InterruptedException ex) {
+            throw new RuntimeException(ex);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    class DetectTask implements Callable<ArrayList<TagDetection>>
+    {
+        BufferedImage im;
+        double opticalCenter[];
+
+        DetectTask(BufferedImage im, double opticalCenter[])
+        {
+            this.im = im;
+            this.opticalCenter = opticalCenter;
+        }
+
+        public ArrayList<TagDetection> call() throws Exception
+        {
+            double oc[] = opticalCenter;
+            if (oc == null)
+                oc = new double[] { im.getWidth()/2.0, im.getHeight()/2.0 };
+
+            // there is one detector per worker thread, so this never
+            // has to wait.
+            TagDetector td = idleDetectors.take();
+            try {
+                return td.process(im, oc);
+            } finally {
+                idleDetectors.put(td);
+            }
+        }
+    }
+
+    /** Stop the worker threads. **/
+    public void shutdown()
+    {
+        exec.shutdown();
+    }
+}
@@ -0,0 +1,198 @@
+package april.tag;
+
+import java.util.*;
+
+import april.jmat.*;
+
+/** Accumulates the statistics TagDetector needs to fit a line segment
+ * to each cluster of pixels (steps four and five), without creating
+ * an object per pixel. Every cluster found by the union-find is
+ * assigned a dense index; weighted moments, extents and gradient
+ * votes are then kept in flat arrays indexed by it.
+ *
+ * The arithmetic (including the order of accumulation) mirrors
+ * GLineSegment2D.lsqFitXYW, so the fitted segments are identical to
+ * those obtained from explicit lists of (x, y, weight) points.
+ *
+ * Usage: reset(), addPixel() for every pixel in scan order,
+ * fitLines(), then addExtent() and addVote() passes over
+ * the same pixels (see getPixelCluster()).
+ **/
+class ClusterAccumulator
+{
+    int nclusters;
+
+    // dense cluster index for each union-find representative, and
+    // for each pixel (-1 if not part of any cluster).
+    int repCluster[];
+    int pixelCluster[];
+
+    // weighted moments: sum(w*x), sum(w*y), sum(w*x*x), ...
+    double mX[], mY[], mXX[], mYY[], mXY[], mW[];
+
+    // fitted line: unit direction (ux, uy) and the point (rx, ry)
+    // on the line closest to the origin.
+    double ux[], uy[], rx[], ry[];
+
+    // extent of the pixels along the line direction.
+    double cmin[], cmax[];
+
+    // gradient votes for the winding of the segment.
+    double flip[], noflip[];
+
+    public ClusterAccumulator()
+    {
+        allocateClusters(256);
+    }
+
+    /** Prepare for an image with npixels pixels. **/
+    void reset(int npixels)
+    {
+        if (repCluster == null || repCluster.length != npixels) {
+            repCluster = new int[npixels];
+            pixelCluster = new int[npixels];
+        }
+
+        Arrays.fill(repCluster, -1);
+        Arrays.fill(pixelCluster, -1);
+        nclusters = 0;
+    }
+
+    void allocateClusters(int capacity)
+    {
+        mX = grow(mX, capacity);
+        mY = grow(mY, capacity);
+        mXX = grow(mXX, capacity);
+        mYY = grow(mYY, capacity);
+        mXY = grow(mXY, capacity);
+        mW = grow(mW, capacity);
+        ux = grow(ux, capacity);
+        uy = grow(uy, capacity);
+        rx = grow(rx, capacity);
+        ry = grow(ry, capacity);
+        cmin = grow(cmin, capacity);
+        cmax = grow(cmax, capacity);
+        flip = grow(flip, capacity);
+        noflip = grow(noflip, capacity);
+    }
+
+    static double[] grow(double v[], int capacity)
+    {
+        if (v == null)
+            return new double[capacity];
+
+        return Arrays.copyOf(v, capacity);
+    }
+
+    int getNumClusters()
+    {
+        return nclusters;
+    }
+
+    /** The cluster index of the pixel, or -1. **/
+    final int getPixelCluster(int idx)
+    {
+        return pixelCluster[idx];
+    }
+
+    /** Add pixel (x,y) (with index idx) belonging to the union-find
+     * cluster 'rep' with weight w. **/
+    final void addPixel(int idx, int rep, double x, double y, double w)
+    {
+        int c = repCluster[rep];
+
+        if (c < 0) {
+            c = nclusters++;
+            if (c == mX.length)
+                allocateClusters(2*mX.length);
+
+            repCluster[rep] = c;
+            mX[c] = mY[c] = mXX[c] = mYY[c] = mXY[c] = mW[c] = 0;
+            cmin[c] = Double.MAX_VALUE;
+            cmax[c] = -Double.MAX_VALUE;
+            flip[c] = noflip[c] = 0;
+        }
+
+        pixelCluster[idx] = c;
+
+        mY[c]  += y*w;
+        mX[c]  += x*w;
+        mYY[c] += y*y*w;
+        mXX[c] += x*x*w;
+        mXY[c] += x*y*w;
+        mW[c]  += w;
+    }
+
+    /** Fit a line to every cluster (see GLine2D.lsqFitXYW). **/
+    void fitLines()
+    {
+        for (int c = 0; c < nclusters; c++) {
+            double n = mW[c];
+
+            double Ex  = mX[c]/n;
+            double Ey  = mY[c]/n;
+            double Cxx = mXX[c]/n - sq(mX[c]/n);
+            double Cyy = mYY[c]/n - sq(mY[c]/n);
+            double Cxy = mXY[c]/n - (mX[c]/n)*(mY[c]/n);
+
+            // find dominant direction via SVD
+            double phi = 0.5*Math.atan2(-2*Cxy,(Cyy-Cxx));
+
+            double dx = -Math.sin(phi);
+            double dy = Math.cos(phi);
+
+            double mag = Math.sqrt(dx*dx + dy*dy);
+            dx /= mag;
+            dy /= mag;
+
+            double dotprod = -dy*Ex + dx*Ey;
+
+            ux[c] = dx;
+            uy[c] = dy;
+            rx[c] = -dy*dotprod;
+            ry[c] = dx*dotprod;
+        }
+    }
+
+    /** Update the extent of cluster c with point (x,y). **/
+    final void addExtent(int c, double x, double y)
+    {
+        double coord = x*ux[c] + y*uy[c];
+
+        if (coord < cmin[c])
+            cmin[c] = coord;
+        if (coord > cmax[c])
+            cmax[c] = coord;
+    }
+
+    /** Endpoints of the segment fit to cluster c: {x1, y1, x2, y2} **/
+    final void getSegment(int c, double p[])
+    {
+        p[0] = rx[c] + cmin[c]*ux[c];
+        p[1] = ry[c] + cmin[c]*uy[c];
+        p[2] = rx[c] + cmax[c]*ux[c];
+        p[3] = ry[c] + cmax[c]*uy[c];
+    }
+
+    /** Record the vote of a pixel whose gradient has direction theta
+     * and magnitude mag, given that the segment points in direction
+     * segTheta.
+     **/
+    final void addVote(int c, double theta, double mag, double segTheta)
+    {
+        // err *should* be +Math.PI/2 for the correct winding,
+        // but if we've got the wrong winding, it'll be around
+        // -Math.PI/2.
+        double err = MathUtil.mod2pi(theta - segTheta);
+
+        if (err < 0)
+            noflip[c] += mag;
+        else
+            flip[c] += mag;
+    }
+
+    static final double sq(double v)
+    {
+        return v*v;
+    }
+}
@@ -0,0 +1,183 @@
+package april.tag;
+
+import april.image.*;
+
+/** Reads the bits of a quad, for step eight of TagDetector.
+ *
+ * The sample points form a fixed (dd+2) x (dd+2) lattice in "quad
+ * space", where dd = d + 2*blackBorder: a ring of white border
+ * samples, a ring of black border samples, and the data bits. Each
+ * quad's homography maps the whole lattice into a buffer at once,
+ * and the image is read there.
+ *
+ * The two GrayModels are fit to the border rings. Their normal
+ * equations depend only on which lattice points were observed, so
+ * when every border sample is inside the image (as it almost always
+ * is) we use an inverse computed once per lattice, and only the
+ * right-hand sides depend on the quad. The results are identical to
+ * fitting each model from scratch.
+ *
+ * A QuadDecoder reuses its buffers, and so must not be used by more
+ * than one thread at a time.
+ **/
+class QuadDecoder
+{
+    final TagFamily family;
+
+    // the lattice is n x n, with dd = n - 2 cells across the tag.
+    final int n, dd;
+
+    // quad-space coordinates of lattice row/column k, in [0,1] (as
+    // used by the gray models) and in [-1,1] (as used by the
+    // homography).
+    final double coord01[], coord11[];
+
+    // the inverses of the normal equations for complete rings, or
+    // null when the models would be flat.
+    final double whiteAinv[][], blackAinv[][];
+
+    // per-quad buffers, indexed by iy*n + ix.
+    final double px[], py[];
+    final float values[];
+    final boolean inside[];
+
+    final TagDetector.GrayModel whiteModel = new TagDetector.GrayModel();
+    final TagDetector.GrayModel blackModel = new TagDetector.GrayModel();
+
+    QuadDecoder(TagFamily family)
+    {
+        this.family = family;
+
+        dd = 2*family.blackBorder + family.d;
+        n = dd + 2;
+
+        coord01 = new double[n];
+        coord11 = new double[n];
+        for (int k = 0; k < n; k++) {
+            // lattice index k is cell k-1; cells -1 and dd are the
+            // white border.
+            coord01[k] = (k - 1 + .5) / dd;
+            coord11[k] = 2*coord01[k] - 1;
+        }
+
+        px = new double[n*n];
+        py = new double[n*n];
+        values = new float[n*n];
+        inside = new boolean[n*n];
+
+        // fit both models to every border point, with no data.
+        for (int iy = 0; iy < n; iy++) {
+            for (int ix = 0; ix < n; ix++) {
+                int ring = getRing(ix, iy);
+                if (ring == 0)
+                    whiteModel.addObservation(coord01[ix], coord01[iy], 0);
+                else if (ring == 1)
+                    blackModel.addObservation(coord01[ix], coord01[iy], 0);
+            }
+        }
+
+        whiteAinv = whiteModel.computeInverse();
+        blackAinv = blackModel.computeInverse();
+    }
+
+    /** 0 for the white border, 1 for the black border, 2 inside. **/
+    final int getRing(int ix, int iy)
+    {
+        int r = Math.min(Math.min(ix, iy), Math.min(n - 1 - ix, n - 1 - iy));
+        return Math.min(r, 2);
+    }
+
+    /** Read the code from the quad whose homography (from quad space
+     * in [-1,1] to pixels) is H. Returns -1 if any data bit falls
+     * outside the image. On return, px, py, values and inside hold
+     * the samples. **/
+    long readCode(FloatImage fim, double H[][])
+    {
+        int width = fim.width, height = fim.height;
+
+        double h00 = H[0][0], h01 = H[0][1], h02 = H[0][2];
+        double h10 = H[1][0], h11 = H[1][1], h12 = H[1][2];
+        double h20 = H[2][0], h21 = H[2][1], h22 = H[2][2];
+
+        // project the lattice and sample the image.
+        boolean complete = true;
+
+        for (int iy = 0; iy < n; iy++) {
+            double wy = coord11[iy];
+
+            for (int ix = 0; ix < n; ix++) {
+                double wx = coord11[ix];
+                int idx = iy*n + ix;
+
+                double z = h20*wx + h21*wy + h22;
+                double x = (h00*wx + h01*wy + h02)/z;
+                double y = (h10*wx + h11*wy + h12)/z;
+                px[idx] = x;
+                py[idx] = y;
+
+                int irx = (int) (x+.5);
+                int iry = (int) (y+.5);
+
+                if (irx < 0 || irx >= width || iry < 0 || iry >= height) {
+                    inside[idx] = false;
+                    if (getRing(ix, iy) < 2)
+                        complete = false;
+                    continue;
+                }
+
+                inside[idx] = true;
+                values[idx] = fim.d[iry*width + irx];
+            }
+        }
+
+        // fit the threshold models to the border rings.
+        whiteModel.reset();
+        blackModel.reset();
+
+        for (int iy = 0; iy < n; iy++) {
+            for (int ix = 0; ix < n; ix++) {
+                int idx = iy*n + ix;
+                if (!inside[idx])
+                    continue;
+
+                int ring = getRing(ix, iy);
+                if (ring == 2)
+                    continue;
+
+                TagDetector.GrayModel model = (ring == 0) ? whiteModel : blackModel;
+
+                if (complete)
+                    model.addValue(coord01[ix], coord01[iy], values[idx]);
+                else
+                    model.addObservation(coord01[ix], coord01[iy], values[idx]);
+            }
+        }
+
+        if (complete) {
+            whiteModel.compute(whiteAinv);
+            blackModel.compute(blackAinv);
+        }
+
+        // Read off the bits. Reminder: the MSB is at tag coordinates
+        // (-1,1) (the top left).
+        int bb = family.blackBorder;
+        long tagCode = 0;
+
+        for (int iy = bb + family.d - 1; iy >= bb; iy--) {
+            for (int ix = bb; ix < bb + family.d; ix++) {
+                int idx = (iy+1)*n + ix + 1;
+                if (!inside[idx])
+                    return -1;
+
+                double x = coord01[ix+1], y = coord01[iy+1];
+                double threshold = (blackModel.interpolate(x, y) + whiteModel.interpolate(x, y))*.5;
+
+                tagCode = tagCode << 1;
+                if (values[idx] > threshold)
+                    tagCode |= 1;
+            }
+        }
+
+        return tagCode;
+    }
+}
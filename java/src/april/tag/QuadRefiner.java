@@ -0,0 +1,268 @@
+package april.tag;
+
+import april.image.*;
+
+/** Refines the corners of a quad against the gradient of an image
+ * (the same central differences as TagDetector.computeGradient, but
+ * computed only where they are sampled), for TagDetector.refineQuads.
+ *
+ * The corners of a quad are the intersections of lines fit to
+ * clusters of pixels, which may be noisy, decimated, or pulled
+ * around by nearby edges. Here, each side of the quad is sampled at
+ * evenly spaced points. At each, we search along the side's normal
+ * for the nearest peak of the gradient magnitude, locating it to
+ * sub-pixel precision by the centroid of the samples in the peak. A
+ * line is fit (by weighted total least squares) to the peaks, and the
+ * process is repeated from the new line for a fixed number of
+ * iterations. The refined corners are the intersections of adjacent
+ * lines.
+ *
+ * Sides with too few good samples, and corners that would move
+ * further than twice the search range, are left alone. A QuadRefiner
+ * has no mutable state and may be shared by several threads.
+ **/
+class QuadRefiner
+{
+    final FloatImage im;
+
+    /** The number of times each side is re-fit. **/
+    int iterations = 2;
+
+    /** Samples per side, at most. **/
+    int maxSamples = 64;
+
+    /** Ignore samples whose gradient direction is further than this
+     * from the side's normal. **/
+    double maxAngleError = Math.toRadians(25);
+
+    // spacing of the samples along the normal.
+    static final double STEP = 0.5;
+
+    // The peak nearest the side may be centered up to range pixels
+    // from it, and its extent is measured up to PEAK_MARGIN pixels
+    // beyond that. Smaller local maxima (noise) are skipped.
+    static final double PEAK_MARGIN = 2, PEAK_MIN = 0.5;
+
+    QuadRefiner(FloatImage im)
+    {
+        this.im = im;
+    }
+
+    /** Returns the refined corners of the quad whose corners are p,
+     * searching for edges up to range pixels from each side. Returns
+     * p itself if nothing could be refined. **/
+    double[][] refine(double p[][], double range)
+    {
+        // each line is a point (lines[i][0], lines[i][1]) and a unit
+        // direction (lines[i][2], lines[i][3]).
+        double lines[][] = new double[4][];
+        boolean refined = false;
+
+        for (int i = 0; i < 4; i++) {
+            lines[i] = refineSide(p[i], p[(i+1)%4], range);
+            if (lines[i] == null) {
+                double dx = p[(i+1)%4][0] - p[i][0], dy = p[(i+1)%4][1] - p[i][1];
+                double len = Math.sqrt(dx*dx + dy*dy);
+                lines[i] = new double[] { p[i][0], p[i][1], dx/len, dy/len };
+            } else {
+                refined = true;
+            }
+        }
+
+        if (!refined)
+            return p;
+
+        double q[][] = new double[4][];
+        double maxShift = 2*range;
+
+        for (int i = 0; i < 4; i++) {
+            // corner i joins side i-1 to side i.
+            q[i] = intersect(lines[(i+3)%4], lines[i]);
+
+            if (q[i] == null || Math.abs(q[i][0] - p[i][0]) > maxShift || Math.abs(q[i][1] - p[i][1]) > maxShift)
+                q[i] = p[i];
+        }
+
+        return q;
+    }
+
+    /** Fit a line to the gradient peaks near the side from a to
+     * b. Returns {x, y, ux, uy}, or null. **/
+    double[] refineSide(double a[], double b[], double range)
+    {
+        double dx = b[0] - a[0], dy = b[1] - a[1];
+        double len = Math.sqrt(dx*dx + dy*dy);
+        if (len < 1)
+            return null;
+
+        // the original direction, and the current line.
+        double u0x = dx/len, u0y = dy/len;
+        double cx = a[0], cy = a[1], ux = u0x, uy = u0y;
+
+        int nsamples = Math.max(3, Math.min(maxSamples, (int) len));
+        int nsteps = (int) Math.ceil(range / STEP);
+        int nmargin = (int) Math.ceil(PEAK_MARGIN / STEP);
+        int c = nsteps + nmargin;
+        double vals[] = new double[2*c + 1];
+        double cosThresh = Math.cos(maxAngleError);
+
+        boolean ok = false;
+
+        for (int iter = 0; iter < iterations; iter++) {
+            double nx = -uy, ny = ux;
+
+            double sw = 0, sx = 0, sy = 0, sxx = 0, syy = 0, sxy = 0;
+            int count = 0;
+
+            for (int s = 0; s < nsamples; s++) {
+                // stay away from the corners, where the other sides'
+                // gradients interfere.
+                double t = len * (0.15 + 0.7 * s / (nsamples - 1));
+
+                // the sample point along the original side, projected
+                // onto the current line.
+                double qx = a[0] + u0x*t, qy = a[1] + u0y*t;
+                double d = (qx - cx)*nx + (qy - cy)*ny;
+                qx -= d*nx;
+                qy -= d*ny;
+
+                double max = 0;
+                for (int k = 0; k < vals.length; k++) {
+                    double o = (k - c)*STEP;
+                    vals[k] = Math.sqrt(sampleMag(qx + nx*o, qy + ny*o));
+                    if (k >= c - nsteps && k <= c + nsteps)
+                        max = Math.max(max, vals[k]);
+                }
+
+                if (max <= 0)
+                    continue;
+
+                // The edge is the local maximum nearest the current
+                // line: with a wide search range, the strongest peak
+                // may be another edge of the tag.
+                int best = -1;
+                for (int dk = 0; dk <= nsteps && best < 0; dk++) {
+                    for (int sgn = -1; sgn <= 1 && best < 0; sgn += 2) {
+                        int k = c + sgn*dk;
+                        if (vals[k] >= PEAK_MIN*max && vals[k] >= vals[k-1] && vals[k] >= vals[k+1])
+                            best = k;
+                    }
+                }
+                if (best < 0)
+                    continue;
+
+                // It is at the centroid of the part of the peak above
+                // half its height (but not past a valley); this is
+                // also correct when the peak is flat, as it is for
+                // blurry edges. That part must not be cut off by the
+                // ends of the samples.
+                double half = 0.5*vals[best];
+                int k0 = best, k1 = best;
+                while (k0 > 0 && vals[k0-1] >= half && vals[k0-1] <= vals[k0])
+                    k0--;
+                while (k1 + 1 < vals.length && vals[k1+1] >= half && vals[k1+1] <= vals[k1])
+                    k1++;
+
+                if (k0 == 0 || k1 == vals.length - 1)
+                    continue;
+
+                double wsum = 0, ksum = 0;
+                for (int k = k0; k <= k1; k++) {
+                    wsum += vals[k];
+                    ksum += vals[k]*k;
+                }
+
+                double o = (ksum/wsum - c)*STEP;
+
+                double px = qx + nx*o, py = qy + ny*o;
+
+                // the gradient must be (nearly) normal to the side.
+                int ix = (int) Math.round(px), iy = (int) Math.round(py);
+                if (ix < 1 || iy < 1 || ix + 1 >= im.width || iy + 1 >= im.height)
+                    continue;
+
+                float Ix = im.get(ix+1, iy) - im.get(ix-1, iy);
+                float Iy = im.get(ix, iy+1) - im.get(ix, iy-1);
+                double gmag = Math.sqrt(Ix*Ix + Iy*Iy);
+                if (gmag == 0 || Math.abs(Ix*nx + Iy*ny) < cosThresh*gmag)
+                    continue;
+
+                double w = vals[best];
+                sw += w;
+                sx += w*px;
+                sy += w*py;
+                sxx += w*px*px;
+                syy += w*py*py;
+                sxy += w*px*py;
+                count++;
+            }
+
+            if (count < 3)
+                break;
+
+            double mx = sx/sw, my = sy/sw;
+            double cxx = sxx/sw - mx*mx, cyy = syy/sw - my*my, cxy = sxy/sw - mx*my;
+
+            // direction of greatest variance.
+            double phi = 0.5*Math.atan2(2*cxy, cxx - cyy);
+            double nux = Math.cos(phi), nuy = Math.sin(phi);
+            if (nux*u0x + nuy*u0y < 0) {
+                nux = -nux;
+                nuy = -nuy;
+            }
+
+            cx = mx;
+            cy = my;
+            ux = nux;
+            uy = nuy;
+            ok = true;
+        }
+
+        if (!ok)
+            return null;
+
+        return new double[] { cx, cy, ux, uy };
+    }
+
+    static double[] intersect(double l0[], double l1[])
+    {
+        // solve l0.p + s*l0.u = l1.p + t*l1.u for s.
+        double det = l0[2]*(-l1[3]) - l0[3]*(-l1[2]);
+        if (Math.abs(det) < 1e-9)
+            return null;
+
+        double rx = l1[0] - l0[0], ry = l1[1] - l0[1];
+        double s = (rx*(-l1[3]) - ry*(-l1[2])) / det;
+
+        return new double[] { l0[0] + s*l0[2], l0[1] + s*l0[3] };
+    }
+
+    /** The squared gradient magnitude of im at pixel (x, y), as
+     * computed by TagDetector.computeGradient; 0 at the edges. **/
+    double getMag(int x, int y)
+    {
+        if (x < 1 || y < 1 || x + 1 >= im.width || y + 1 >= im.height)
+            return 0;
+
+        float d[] = im.d;
+        int idx = y*im.width + x;
+        float Ix = d[idx+1] - d[idx-1];
+        float Iy = d[idx+im.width] - d[idx-im.width];
+
+        return Ix*Ix + Iy*Iy;
+    }
+
+    /** Bilinear interpolation of the squared gradient magnitude at
+     * (x, y); 0 outside. **/
+    double sampleMag(double x, double y)
+    {
+        int x0 = (int) Math.floor(x), y0 = (int) Math.floor(y);
+        if (x0 < 0 || y0 < 0 || x0 + 1 >= im.width || y0 + 1 >= im.height)
+            return 0;
+
+        double fx = x - x0, fy = y - y0;
+
+        return (1-fy)*((1-fx)*getMag(x0, y0) + fx*getMag(x0+1, y0)) +
+            fy*((1-fx)*getMag(x0, y0+1) + fx*getMag(x0+1, y0+1));
+    }
+}
@@ -0,0 +1,208 @@
+package april.tag;
+
+import april.image.*;
+
+/** Steps two and three (edge construction) of TagDetector on
+ * quantized gradients, for TagDetector.quantizedGradient.
+ *
+ * The gradient direction of each pixel is stored as a short, in
+ * units of pi/32768 radians, so that the difference between two
+ * directions, taken modulo 2*pi, is simply the difference of the
+ * shorts (which wraps around). The direction is computed by a
+ * polynomial approximation of atan2 whose error (about 1e-5 radians)
+ * is smaller than this quantization, and only where the magnitude
+ * is large enough for the direction to be used. The squared
+ * magnitude, which is at most 2 for images in [0,1], is stored as a
+ * char in units of MAG_UNIT (larger magnitudes saturate).
+ *
+ * Edge costs are then computed with integer arithmetic: the absolute
+ * difference of two directions indexes a table of costs, which is
+ * rebuilt when maxEdgeCost or WEIGHT_SCALE change.
+ **/
+class QuantizedGradient
+{
+    static final double THETA_UNIT = Math.PI / 32768;
+    static final double MAG_UNIT = 2.0 / 65535;
+
+    int width, height;
+    short theta[] = new short[0];
+    char mag[] = new char[0];
+
+    // cost[d] is the edge cost for a difference of d units; larger
+    // differences are not edges.
+    int cost[];
+    double costMaxEdgeCost;
+    int costWeightScale;
+
+    void setSize(int width, int height)
+    {
+        if (this.width != width || this.height != height) {
+            this.width = width;
+            this.height = height;
+
+            // the one-pixel border is never written, and stays zero.
+            theta = new short[width*height];
+            mag = new char[width*height];
+        }
+    }
+
+    // the coefficients of the atan polynomial, pre-multiplied by
+    // 1/THETA_UNIT.
+    static final float A1 = (float) (0.9998660 / THETA_UNIT), A3 = (float) (-0.3302995 / THETA_UNIT),
+        A5 = (float) (0.1801410 / THETA_UNIT), A7 = (float) (-0.0851330 / THETA_UNIT),
+        A9 = (float) (0.0208351 / THETA_UNIT);
+
+    /** atan2(y, x) in units of THETA_UNIT. (0 for a zero vector.) **/
+    static final int atan2(float y, float x)
+    {
+        float ax = Math.abs(x), ay = Math.abs(y);
+        if (ax == 0 && ay == 0)
+            return 0;
+
+        // atan(a) for a in [0, 1], then unfold the octant.
+        boolean steep = ay > ax;
+        float a = steep ? ax / ay : ay / ax;
+        float s = a*a;
+        float r = a*(A1 + s*(A3 + s*(A5 + s*(A7 + s*A9))));
+
+        if (steep)
+            r = 16384 - r;
+        if (x < 0)
+            r = 32768 - r;
+
+        int q = (int) (r + 0.5f);
+        return (y < 0) ? -q : q;
+    }
+
+    /** Step two for rows [y0, y1) of fim, which must have the size
+     * given to setSize(). The direction of pixels whose magnitude is
+     * less than minMag is never used, and is left zero. **/
+    void compute(FloatImage fim, double minMag, int y0, int y1)
+    {
+        float d[] = fim.d;
+        int w = width;
+        int qmin = getMinMag(minMag);
+        float invMagUnit = (float) (1.0 / MAG_UNIT);
+
+        for (int y = Math.max(1, y0); y < y1 && y+1 < height; y++) {
+            int i = y*w + 1;
+
+            for (int x = 1; x+1 < w; x++, i++) {
+                float Ix = d[i+1] - d[i-1];
+                float Iy = d[i+w] - d[i-w];
+
+                int m = Math.min(65535, (int) ((Ix*Ix + Iy*Iy)*invMagUnit + 0.5f));
+                mag[i] = (char) m;
+
+                theta[i] = (m < qmin) ? 0 : (short) atan2(Iy, Ix);
+            }
+        }
+    }
+
+    double getTheta(int idx)
+    {
+        return theta[idx] * THETA_UNIT;
+    }
+
+    double getMag(int idx)
+    {
+        return mag[idx] * MAG_UNIT;
+    }
+
+    /** The smallest quantized magnitude that is at least minMag. **/
+    static int getMinMag(double minMag)
+    {
+        return (int) Math.ceil(minMag / MAG_UNIT);
+    }
+
+    /** Rebuild the cost table if necessary. As in
+     * TagDetector.edgeCost(), the cost of a difference of theta
+     * radians is theta / maxEdgeCost * weightScale. **/
+    void setCosts(double maxEdgeCost, int weightScale)
+    {
+        if (cost != null && costMaxEdgeCost == maxEdgeCost && costWeightScale == weightScale)
+            return;
+
+        int maxd = (int) Math.min(32768, Math.floor(maxEdgeCost / THETA_UNIT));
+
+        cost = new int[maxd + 1];
+        for (int i = 0; i <= maxd; i++)
+            cost[i] = (int) (i * THETA_UNIT / maxEdgeCost * weightScale);
+
+        costMaxEdgeCost = maxEdgeCost;
+        costWeightScale = weightScale;
+    }
+
+    /** As TagDetector.buildEdges(), on the quantized gradient. **/
+    int buildEdges(double minMag, double tmin[], double tmax[], double mmin[], double mmax[],
+                   int y0, int y1, long edges[], int nedges, int above[])
+    {
+        int w = width;
+        int nabove = 0;
+        int qmin = getMinMag(minMag);
+        int cost[] = this.cost;
+        int maxd = cost.length - 1;
+
+        for (int y = y0; y < y1 && y+1 < height; y++) {
+            for (int x = 0; x+1 < w; x++) {
+                int i = y*w + x;
+
+                int mag0 = mag[i];
+                if (mag0 < qmin)
+                    continue;
+                nabove++;
+                mmax[i] = mmin[i] = mag0 * MAG_UNIT;
+
+                int theta0 = theta[i];
+                tmin[i] = tmax[i] = theta0 * THETA_UNIT;
+
+                long ida = ((long) i) << TagDetector.IDA_SHIFT;
+
+                // 8 connectivity. The short cast takes the
+                // difference modulo 2*pi.
+                int j = i + 1;
+                if (mag[j] >= qmin) {
+                    int dt = Math.abs((short) (theta[j] - theta0));
+                    if (dt <= maxd)
+                        edges[nedges++] = ida + (((long) j) << TagDetector.IDB_SHIFT) + cost[dt];
+                }
+
+                j = i + w;
+                if (mag[j] >= qmin) {
+                    int dt = Math.abs((short) (theta[j] - theta0));
+                    if (dt <= maxd)
+                        edges[nedges++] = ida + (((long) j) << TagDetector.IDB_SHIFT) + cost[dt];
+                }
+
+                j = i + w + 1;
+                if (mag[j] >= qmin) {
+                    int dt = Math.abs((short) (theta[j] - theta0));
+                    if (dt <= maxd)
+                        edges[nedges++] = ida + (((long) j) << TagDetector.IDB_SHIFT) + cost[dt];
+                }
+
+                j = i + w - 1;
+                if (x > 0 && mag[j] >= qmin) {
+                    int dt = Math.abs((short) (theta[j] - theta0));
+                    if (dt <= maxd)
+                        edges[nedges++] = ida + (((long) j) << TagDetector.IDB_SHIFT) + cost[dt];
+                }
+            }
+        }
+
+        if (above != null)
+            above[y0] = nabove;
+
+        return nedges;
+    }
+
+    /** Copy the (dequantized) gradient into float images, for
+     * debugging. **/
+    void toFloatImages(FloatImage fimTheta, FloatImage fimMag)
+    {
+        for (int i = 0; i < width*height; i++) {
+            fimTheta.d[i] = (float) getTheta(i);
+            fimMag.d[i] = (float) getMag(i);
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package april.tag;
+
+import java.awt.*;
+import java.awt.geom.*;
+import java.awt.image.*;
+import java.util.*;
+
+import april.image.*;
+import april.jmat.*;
+import april.util.*;
+
+/** Benchmarks the tag detection pipeline, both end to end and stage
+ * by stage, on synthetic images of several sizes and tag densities.
+ * Use it to check for performance regressions and to evaluate
+ * optimizations; every benchmark runs the same code as
+ * TagDetector.process() on the same intermediate data.
+ *
+ * Each benchmark is warmed up (so that the JIT has compiled it) and
+ * then timed over several iterations. Each iteration repeats the
+ * operation enough times to take at least minIterationTime seconds.
+ *
+ * Usage: java april.tag.TagBenchmark [--sizes 640x480,1280x960]
+ * [--tags 4,32] [--filter detect] ...
+ **/
+public class TagBenchmark
+{
+    public int warmupIterations = 5;
+    public int iterations = 10;
+    public double minIterationTime = 0.2;
+
+    /** Only run the benchmarks whose names contain this string. **/
+    public String filter = "";
+
+    /** If greater than one, also benchmark TagDetector.process()
+     * with this many threads. **/
+    public int nthreads = 1;
+
+    TagFamily tf;
+
+    // results are folded into this value, which is printed at the end,
+    // so that the JIT can't discard any of the work.
+    long blackhole;
+
+    /** A single operation to be timed. setup() is not timed. **/
+    abstract static class Benchmark
+    {
+        String name;
+
+        Benchmark(String name)
+        {
+            this.name = name;
+        }
+
+        void setup()
+        {
+        }
+
+        abstract long run();
+    }
+
+    public TagBenchmark(TagFamily tf)
+    {
+        this.tf = tf;
+    }
+
+    /** Renders ntags randomly chosen, randomly rotated tags of the
+     * family on a grid covering a width x height image, over a
+     * shaded background with a little noise. **/
+    public static BufferedImage makeScene(TagFamily tf, int width, int height, int ntags, long seed)
+    {
+        Random r = new Random(seed);
+
+        BufferedImage im = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = im.createGraphics();
+
+        g.setPaint(new GradientPaint(0, 0, new Color(90, 90, 90), width, height, new Color(170, 170, 170)));
+        g.fillRect(0, 0, width, height);
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+
+        int ncols = Math.max(1, (int) Math.ceil(Math.sqrt(ntags * width / (double) height)));
+        int nrows = (ntags + ncols - 1) / ncols;
+        double cellw = width / (double) ncols, cellh = height / (double) nrows;
+
+        for (int i = 0; i < ntags; i++) {
+            BufferedImage tag = tf.makeImage(r.nextInt(tf.codes.length));
+
+            // leave room for the white border and any rotation.
+            double sz = Math.min(cellw, cellh) * (0.45 + 0.2*r.nextDouble());
+
+            AffineTransform T = new AffineTransform();
+            T.translate((i % ncols + 0.5)*cellw, (i / ncols + 0.5)*cellh);
+            T.rotate(r.nextDouble()*2*Math.PI);
+            T.scale(sz / tag.getWidth(), sz / tag.getWidth());
+            T.translate(-tag.getWidth()/2.0, -tag.getHeight()/2.0);
+            g.drawImage(tag, T, null);
+        }
+
+        g.dispose();
+
+        byte b[] = ((DataBufferByte) im.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < b.length; i++) {
+            int v = (b[i]&0xff) + (int) Math.round(r.nextGaussian()*3);
+            b[i] = (byte) Math.max(0, Math.min(255, v));
+        }
+
+        return im;
+    }
+
+    /** Time b and print a line of results. **/
+    void run(Benchmark b, String scene)
+    {
+        if (!b.name.contains(filter))
+            return;
+
+        b.setup();
+
+        // find a repetition count that takes about minIterationTime.
+        int reps = 1;
+        while (true) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < reps; i++)
+                blackhole += b.run();
+            double dt = (System.nanoTime() - t0) / 1.0E9;
+
+            if (dt >= minIterationTime || reps >= (1 << 24))
+                break;
+
+            reps = (int) Math.min(1 << 24, Math.max(2*reps, reps * 1.2 * minIterationTime / Math.max(dt, 1.0E-6)));
+        }
+
+        for (int iter = 0; iter < warmupIterations; iter++) {
+            for (int i = 0; i < reps; i++)
+                blackhole += b.run();
+        }
+
+        double ms[] = new double[Math.max(1, iterations)];
+
+        for (int iter = 0; iter < ms.length; iter++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < reps; i++)
+                blackhole += b.run();
+            ms[iter] = (System.nanoTime() - t0) / 1.0E6 / reps;
+        }
+
+        double mean = 0, min = Double.MAX_VALUE;
+        for (double v : ms) {
+            mean += v;
+            min = Math.min(min, v);
+        }
+        mean /= ms.length;
+
+        double var = 0;
+        for (double v : ms)
+            var += (v - mean)*(v - mean);
+        double stddev = Math.sqrt(var / Math.max(1, ms.length - 1));
+
+        System.out.printf("%-16s %-18s %12.4f ms  +/- %9.4f  (min %9.4f, %d ops/iter)\n",
+                          b.name, scene, mean, stddev, min, reps);
+    }
+
+    /** Run the per-image benchmarks on one synthetic image. **/
+    public void benchmarkScene(int width, int height, int ntags)
+    {
+        final String scene = String.format("%dx%d/%d", width, height, ntags);
+
+        final FloatImage fim = new FloatImage(makeScene(tf, width, height, ntags, width + 31*ntags));
+        final double opticalCenter[] = new double[] { width/2.0, height/2.0 };
+
+        final TagDetector td = new TagDetector(tf);
+
+        ///////////////////////////////////////////////////////////
+        // End to end.
+        run(new Benchmark("detect") {
+                long run()
+                {
+                    return td.process(fim, opticalCenter).size();
+                }
+            }, scene);
+
+        if (nthreads > 1) {
+            final TagDetector tdmt = new TagDetector(tf);
+            tdmt.nthreads = nthreads;
+
+            run(new Benchmark("detect-mt"+nthreads) {
+                    long run()
+                    {
+                        return tdmt.process(fim, opticalCenter).size();
+                    }
+                }, scene);
+        }
+
+        ///////////////////////////////////////////////////////////
+        // Recreate the intermediate results of each stage, exactly
+        // as process() computes them with the default parameters.
+        int filtsz = ((int) Math.max(3, 3*td.segSigma)) | 1;
+        final float filt[] = SigProc.makeGaussianFilter(td.segSigma, filtsz);
+        final float filtered[] = new float[width*height];
+        final float scratch[] = new float[width*height];
+        final FloatImage fimseg = fim.filterFactoredCentered(filt, filt, filtered);
+
+        final FloatImage fimTheta = new FloatImage(width, height);
+        final FloatImage fimMag = new FloatImage(width, height);
+        td.computeGradient(fimseg, fimTheta, fimMag, 0, height);
+
+        final double tmin[] = new double[width*height], tmax[] = new double[width*height];
+        final double mmin[] = new double[width*height], mmax[] = new double[width*height];
+        final long edges[] = new long[width*height*4];
+        final long sorted[] = new long[width*height*4];
+        final int nedges = td.buildEdges(fimTheta, fimMag, tmin, tmax, mmin, mmax, 0, height-1, edges, 0, null);
+        TagDetector.countingSortLongArray(edges, nedges, -1, TagDetector.WEIGHT_MASK, sorted);
+
+        final UnionFindSimple uf = new UnionFindSimple(width*height);
+
+        // process() leaves its segments in the workspace.
+        td.process(fim, opticalCenter);
+        final ArrayList<TagDetector.Segment> segments = new ArrayList<TagDetector.Segment>(td.workspace.segments);
+        final TagDetectorWorkspace qws = new TagDetectorWorkspace();
+        for (TagDetector.Segment seg : segments)
+            seg.children.clear();
+        td.connectSegments(segments, width, height, qws);
+        final ArrayList<TagDetector.Quad> quads = td.findQuads(segments);
+
+        ///////////////////////////////////////////////////////////
+        // Stages.
+        run(new Benchmark("filter") {
+                long run()
+                {
+                    return fim.filterFactoredCentered(filt, filt, scratch).width;
+                }
+            }, scene);
+
+        final SeparableConvolution fastConv = new SeparableConvolution(filt, filt);
+        fastConv.exact = false;
+
+        run(new Benchmark("filter-fast") {
+                long run()
+                {
+                    return fastConv.apply(fim, scratch, null).width;
+                }
+            }, scene);
+
+        run(new Benchmark("gradient") {
+                long run()
+                {
+                    td.computeGradient(fimseg, fimTheta, fimMag, 0, fimseg.height);
+                    return fimTheta.width;
+                }
+            }, scene);
+
+        run(new Benchmark("edges") {
+                long run()
+                {
+                    return td.buildEdges(fimTheta, fimMag, tmin, tmax, mmin, mmax, 0, fimseg.height-1, edges, 0, null);
+                }
+            }, scene);
+
+        final QuantizedGradient qgrad = new QuantizedGradient();
+        qgrad.setSize(width, height);
+        qgrad.compute(fimseg, td.minMag, 0, height);
+        qgrad.setCosts(td.maxEdgeCost, td.WEIGHT_SCALE);
+
+        run(new Benchmark("gradient-q") {
+                long run()
+                {
+                    qgrad.compute(fimseg, td.minMag, 0, fimseg.height);
+                    return qgrad.width;
+                }
+            }, scene);
+
+        run(new Benchmark("edges-q") {
+                long run()
+                {
+                    return qgrad.buildEdges(td.minMag, tmin, tmax, mmin, mmax, 0, fimseg.height-1, edges, 0, null);
+                }
+            }, scene);
+
+        final RadixSort sorter = new RadixSort();
+
+        run(new Benchmark("sort") {
+                long run()
+                {
+                    return sorter.sort(edges, nedges, -1, TagDetector.WEIGHT_MASK, sorted, null)[0];
+                }
+            }, scene);
+
+        if (nthreads > 1) {
+            final ParallelFor pf = new ParallelFor(nthreads);
+
+            run(new Benchmark("sort-mt"+nthreads) {
+                    long run()
+                    {
+                        return sorter.sort(edges, nedges, -1, TagDetector.WEIGHT_MASK, sorted, pf)[0];
+                    }
+                }, scene);
+
+            pf.shutdown();
+        }
+
+        run(new Benchmark("unionfind") {
+                long run()
+                {
+                    // the same find/union sequence as step three, but
+                    // merging every pair, so that the union-find is
+                    // measured without the merge criterion.
+                    uf.reset();
+                    long nmerged = 0;
+
+                    for (int i = 0; i < nedges; i++) {
+                        int ida = uf.getRepresentative((int) ((sorted[i]>>TagDetector.IDA_SHIFT)&TagDetector.INDEX_MASK));
+                        int idb = uf.getRepresentative((int) ((sorted[i]>>TagDetector.IDB_SHIFT)&TagDetector.INDEX_MASK));
+
+                        if (ida != idb) {
+                            uf.connectNodes(ida, idb);
+                            nmerged++;
+                        }
+                    }
+                    return nmerged;
+                }
+            }, scene);
+
+        run(new Benchmark("quadsearch") {
+                long run()
+                {
+                    for (TagDetector.Segment seg : segments)
+                        seg.children.clear();
+
+                    td.connectSegments(segments, fim.width, fim.height, qws);
+                    return td.findQuads(segments).size();
+                }
+            }, scene);
+
+        final QuadDecoder decoder = new QuadDecoder(td.tagFamily);
+
+        run(new Benchmark("decodequads") {
+                long run()
+                {
+                    long ndecoded = 0;
+                    for (TagDetector.Quad quad : quads) {
+                        if (td.decodeQuad(fim, quad, decoder) != null)
+                            ndecoded++;
+                    }
+                    return ndecoded;
+                }
+            }, scene);
+    }
+
+    /** Benchmark TagFamily.decode() on codes with 0 to
+     * errorRecoveryBits+1 bit errors, and on random codes (as
+     * produced by quads that aren't tags). **/
+    public void benchmarkDecode()
+    {
+        Random r = new Random(0);
+
+        final long codes[] = new long[4096];
+        for (int i = 0; i < codes.length; i++) {
+            if (i % 4 == 0) {
+                codes[i] = r.nextLong();
+            } else {
+                long code = tf.codes[r.nextInt(tf.codes.length)];
+                for (int rot = r.nextInt(4); rot > 0; rot--)
+                    code = TagFamily.rotate90(code, tf.d);
+
+                int nerrors = r.nextInt(tf.errorRecoveryBits + 2);
+                for (int e = 0; e < nerrors; e++)
+                    code ^= 1L << r.nextInt(tf.bits);
+
+                codes[i] = code;
+            }
+
+            if (tf.bits < 64)
+                codes[i] &= (1L << tf.bits) - 1;
+        }
+
+        final TagDetection det = new TagDetection();
+
+        run(new Benchmark("decode") {
+                long run()
+                {
+                    long ngood = 0;
+                    for (int i = 0; i < codes.length; i++) {
+                        tf.decode(det, codes[i]);
+                        if (det.good)
+                            ngood++;
+                    }
+                    return ngood;
+                }
+            }, String.format("%d codes", codes.length));
+    }
+
+    static int[] parseInts(String s)
+    {
+        String toks[] = s.split(",");
+        int v[] = new int[toks.length];
+        for (int i = 0; i < toks.length; i++)
+            v[i] = Integer.parseInt(toks[i].trim());
+        return v;
+    }
+
+    public static void main(String args[])
+    {
+        GetOpt opts  = new GetOpt();
+        opts.addBoolean('h',"help",false,"See this help screen");
+        opts.addString('f',"tagfamily","april.tag.Tag36h11","Tag family");
+        opts.addString('s',"sizes","640x480,1280x960","Image sizes (comma separated WIDTHxHEIGHT)");
+        opts.addString('n',"tags","4,32","Numbers of tags per image (comma separated)");
+        opts.addString('b',"filter","","Only run benchmarks whose names contain this string");
+        opts.addInt('w',"warmup",5,"Warmup iterations");
+        opts.addInt('i',"iterations",10,"Measured iterations");
+        opts.addDouble('m',"time",0.2,"Minimum time per iteration (s)");
+        opts.addInt('t',"threads",1,"Also benchmark detection with this many threads");
+
+        if (!opts.parse(args)) {
+            System.out.println("option error: "+opts.getReason());
+        }
+
+        if (opts.getBoolean("help")) {
+            System.out.println("Usage: TagBenchmark [options]");
+            opts.doHelp();
+            System.exit(1);
+        }
+
+        TagFamily tf = (TagFamily) ReflectUtil.createObject(opts.getString("tagfamily"));
+        if (tf == null) {
+            System.out.println("Couldn't create tag family "+opts.getString("tagfamily"));
+            System.exit(1);
+        }
+
+        TagBenchmark tb = new TagBenchmark(tf);
+        tb.filter = opts.getString("filter");
+        tb.warmupIterations = opts.getInt("warmup");
+        tb.iterations = opts.getInt("iterations");
+        tb.minIterationTime = opts.getDouble("time");
+        tb.nthreads = opts.getInt("threads");
+
+        System.out.printf("%s, %d processors, %s %s\n", tf.getClass().getName(),
+                          Runtime.getRuntime().availableProcessors(),
+                          System.getProperty("java.vm.name"), System.getProperty("java.version"));
+
+        for (String size : opts.getString("sizes").split(",")) {
+            String wh[] = size.trim().split("x");
+            int width = Integer.parseInt(wh[0]), height = Integer.parseInt(wh[1]);
+
+            for (int ntags : parseInts(opts.getString("tags")))
+                tb.benchmarkScene(width, height, ntags);
+        }
+
+        tb.benchmarkDecode();
+
+        System.out.printf("(%d)\n", tb.blackhole);
+    }
+}
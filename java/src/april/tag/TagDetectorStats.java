@@ -0,0 +1,170 @@
+package april.tag;
+
+/** Per-stage timing and counts for TagDetector.process(), used to
+ * find out where the time goes and how each parameter affects it.
+ *
+ * To collect statistics, set TagDetector.stats to a non-null
+ * object; each call to process() then overwrites it with the figures
+ * for that call. Use add() to accumulate them over many frames:
+ * <pre>
+ * TagDetectorStats total = new TagDetectorStats();
+ * detector.stats = new TagDetectorStats();
+ * for (...) {
+ *     detector.process(im, opticalCenter);
+ *     total.add(detector.stats);
+ * }
+ * System.out.println(total);
+ * </pre>
+ **/
+public class TagDetectorStats
+{
+    // The stages of process(), in order.
+    public static final int PREPROCESS = 0;  // step one, plus the blur/decimation for segmentation
+    public static final int GRADIENT = 1;    // step two
+    public static final int EDGES = 2;       // step three: building the edge list
+    public static final int SORT = 3;        // step three: sorting the edges
+    public static final int MERGE = 4;       // step three: union-find
+    public static final int CLUSTERS = 5;    // step four
+    public static final int FIT = 6;         // step five
+    public static final int CONNECT = 7;     // step six
+    public static final int QUADS = 8;       // step seven
+    public static final int REFINE = 9;      // corner refinement (if refineQuads)
+    public static final int DECODE = 10;     // step eight
+    public static final int SUPPRESS = 11;   // step nine
+    public static final int NSTAGES = 12;
+
+    public static final String STAGE_NAMES[] = new String[] { "preprocess", "gradient", "edges", "sort", "merge",
+                                                              "clusters", "fit", "connect", "quads", "refine",
+                                                              "decode", "suppress" };
+
+    /** The number of calls to process() represented. **/
+    public int nframes;
+
+    /** Wall time spent in each stage, in nanoseconds. **/
+    public long stageNanos[] = new long[NSTAGES];
+
+    /** Wall time of the whole call, in nanoseconds. **/
+    public long totalNanos;
+
+    /** Pixels in the segmentation image (after any decimation). **/
+    public long pixels;
+
+    /** Pixels whose gradient magnitude is at least minMag, i.e.,
+     * which may be connected to their neighbors. **/
+    public long pixelsAboveMinMag;
+
+    /** Edges between neighboring pixels considered for merging. **/
+    public long edges;
+
+    /** Clusters with at least minimumSegmentSize pixels. **/
+    public long clusters;
+
+    /** Line segments fit to the clusters (at least
+     * minimumLineLength long). **/
+    public long segments;
+
+    /** Candidate quads found by the search over segments. **/
+    public long quads;
+
+    /** Quads whose code was within the error recovery range of a
+     * tag, before duplicates are suppressed. **/
+    public long decoded;
+
+    /** Quads whose code was not within the error recovery range of
+     * any tag. **/
+    public long rejectedHamming;
+
+    /** Detections returned. **/
+    public long detections;
+
+    public void reset()
+    {
+        nframes = 0;
+        for (int i = 0; i < NSTAGES; i++)
+            stageNanos[i] = 0;
+        totalNanos = 0;
+
+        pixels = 0;
+        pixelsAboveMinMag = 0;
+        edges = 0;
+        clusters = 0;
+        segments = 0;
+        quads = 0;
+        decoded = 0;
+        rejectedHamming = 0;
+        detections = 0;
+    }
+
+    /** Accumulate the figures in s into this object. **/
+    public void add(TagDetectorStats s)
+    {
+        nframes += s.nframes;
+        for (int i = 0; i < NSTAGES; i++)
+            stageNanos[i] += s.stageNanos[i];
+        totalNanos += s.totalNanos;
+
+        pixels += s.pixels;
+        pixelsAboveMinMag += s.pixelsAboveMinMag;
+        edges += s.edges;
+        clusters += s.clusters;
+        segments += s.segments;
+        quads += s.quads;
+        decoded += s.decoded;
+        rejectedHamming += s.rejectedHamming;
+        detections += s.detections;
+    }
+
+    public TagDetectorStats copy()
+    {
+        TagDetectorStats s = new TagDetectorStats();
+        s.add(this);
+        return s;
+    }
+
+    /** Record the end of a stage that began at time t0 (as returned
+     * by System.nanoTime()). Returns the current time, which is the
+     * start of the next stage. **/
+    long lap(int stage, long t0)
+    {
+        long t1 = System.nanoTime();
+        stageNanos[stage] += t1 - t0;
+        return t1;
+    }
+
+    /** Average time per frame of a stage, in milliseconds. **/
+    public double getStageMillis(int stage)
+    {
+        return stageNanos[stage] / 1.0E6 / Math.max(1, nframes);
+    }
+
+    /** Average time per frame, in milliseconds. **/
+    public double getTotalMillis()
+    {
+        return totalNanos / 1.0E6 / Math.max(1, nframes);
+    }
+
+    /** A table of the per-frame averages. **/
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        double n = Math.max(1, nframes);
+
+        sb.append(String.format("TagDetectorStats: %d frames, %.3f ms/frame\n", nframes, getTotalMillis()));
+
+        for (int i = 0; i < NSTAGES; i++)
+            sb.append(String.format("  %-12s %10.3f ms %6.1f%%\n", STAGE_NAMES[i], getStageMillis(i),
+                                    100.0 * stageNanos[i] / Math.max(1, totalNanos)));
+
+        sb.append(String.format("  %-20s %12.1f\n", "pixels", pixels / n));
+        sb.append(String.format("  %-20s %12.1f\n", "pixels >= minMag", pixelsAboveMinMag / n));
+        sb.append(String.format("  %-20s %12.1f\n", "edges", edges / n));
+        sb.append(String.format("  %-20s %12.1f\n", "clusters", clusters / n));
+        sb.append(String.format("  %-20s %12.1f\n", "segments", segments / n));
+        sb.append(String.format("  %-20s %12.1f\n", "quads", quads / n));
+        sb.append(String.format("  %-20s %12.1f\n", "decoded", decoded / n));
+        sb.append(String.format("  %-20s %12.1f\n", "rejected (hamming)", rejectedHamming / n));
+        sb.append(String.format("  %-20s %12.1f\n", "detections", detections / n));
+
+        return sb.toString();
+    }
+}
@@ -0,0 +1,191 @@
+package april.tag;
+
+import java.util.*;
+
+import april.image.*;
+import april.util.*;
+
+/** Scratch storage used by TagDetector.process(). Buffers are kept
+ * between calls and are only reallocated when the image dimensions
+ * change, so that steady-state detection on a video stream does not
+ * allocate memory proportional to the image size.
+ *
+ * A workspace belongs to a single TagDetector and is not thread safe.
+ **/
+class TagDetectorWorkspace
+{
+    // Step one: the input image and its filtered versions.
+    FloatImage input, filtered, segFiltered, decimated;
+    SeparableConvolution blur, segBlur;
+
+    // Step two: gradient direction and magnitude, or their
+    // quantized versions.
+    FloatImage theta, mag;
+    QuantizedGradient qgrad;
+
+    // Step three: packed edges (and the sorted copy), the per-pixel
+    // theta/magnitude bounds of each cluster, and the clusters
+    // themselves.
+    long edges[], sortedEdges[];
+    int rowEdges[], rowAbove[];
+    RadixSort sorter = new RadixSort();
+    double tmin[], tmax[], mmin[], mmax[];
+    UnionFindSimple uf;
+    byte borderFlags[];
+
+    // Steps four and five: per-cluster line fitting statistics, and
+    // the segment (if any) fit to each cluster.
+    ClusterAccumulator clusters = new ClusterAccumulator();
+    TagDetector.Segment clusterSegments[] = new TagDetector.Segment[0];
+
+    // Step five: the segments found by the most recent call.
+    ArrayList<TagDetector.Segment> segments = new ArrayList<TagDetector.Segment>();
+
+    // Step six: the segments' start points, indexed by position, and
+    // the results of a query.
+    GridIndex grid;
+    double gridX[] = new double[0], gridY[] = new double[0];
+    int gridFound[] = new int[0];
+
+    // Step eight: one decoder per chunk of quads.
+    QuadDecoder decoders[] = new QuadDecoder[0];
+
+    // Steps two through five for the coarser levels of the pyramid
+    // (see TagDetector.pyramidLevels): coarser[0] is level 1.
+    ArrayList<TagDetectorWorkspace> coarser = new ArrayList<TagDetectorWorkspace>();
+
+    /** Returns fim if it has the requested size, else a new image. **/
+    static FloatImage reuse(FloatImage fim, int width, int height)
+    {
+        if (fim != null && fim.width == width && fim.height == height)
+            return fim;
+
+        return new FloatImage(width, height);
+    }
+
+    FloatImage getInput(int width, int height)
+    {
+        input = reuse(input, width, height);
+        return input;
+    }
+
+    FloatImage getFiltered(int width, int height)
+    {
+        filtered = reuse(filtered, width, height);
+        return filtered;
+    }
+
+    FloatImage getSegFiltered(int width, int height)
+    {
+        segFiltered = reuse(segFiltered, width, height);
+        return segFiltered;
+    }
+
+    FloatImage getDecimated(int width, int height)
+    {
+        decimated = reuse(decimated, width, height);
+        return decimated;
+    }
+
+    QuantizedGradient getQuantizedGradient(int width, int height)
+    {
+        if (qgrad == null)
+            qgrad = new QuantizedGradient();
+
+        qgrad.setSize(width, height);
+        return qgrad;
+    }
+
+    /** The workspace for level (&gt; 0) of the pyramid. **/
+    TagDetectorWorkspace getCoarser(int level)
+    {
+        while (coarser.size() < level)
+            coarser.add(new TagDetectorWorkspace());
+
+        return coarser.get(level - 1);
+    }
+
+    /** The step six index for nsegments segments in an image of the
+     * given size. **/
+    GridIndex getGrid(int width, int height, int nsegments)
+    {
+        if (grid == null || !grid.hasBounds(0, 0, width, height, 10))
+            grid = new GridIndex(0, 0, width, height, 10);
+
+        if (gridX.length < nsegments) {
+            int n = Math.max(nsegments, 2*gridX.length);
+            gridX = new double[n];
+            gridY = new double[n];
+            gridFound = new int[n];
+        }
+
+        return grid;
+    }
+
+    /** At least n decoders for the given family. **/
+    QuadDecoder[] getDecoders(TagFamily family, int n)
+    {
+        // (the family's border may have been changed, too.)
+        if (decoders.length > 0 && (decoders[0].family != family ||
+                                    decoders[0].dd != 2*family.blackBorder + family.d))
+            decoders = new QuadDecoder[0];
+
+        if (decoders.length < n) {
+            QuadDecoder d[] = new QuadDecoder[n];
+            for (int i = 0; i < n; i++)
+                d[i] = (i < decoders.length) ? decoders[i] : new QuadDecoder(family);
+            decoders = d;
+        }
+
+        return decoders;
+    }
+
+    TagDetector.Segment[] getClusterSegments(int nclusters)
+    {
+        if (clusterSegments.length < nclusters)
+            clusterSegments = new TagDetector.Segment[Math.max(nclusters, 2*clusterSegments.length)];
+
+        return clusterSegments;
+    }
+
+    /** Prepare the step two and step three buffers for a
+     * segmentation image of the given size. **/
+    void setSegmentationSize(int width, int height)
+    {
+        theta = reuse(theta, width, height);
+        mag = reuse(mag, width, height);
+
+        int n = width*height;
+
+        if (uf == null || uf.size() != n) {
+            edges = new long[n*4];
+            sortedEdges = new long[n*4];
+            tmin = new double[n];
+            tmax = new double[n];
+            mmin = new double[n];
+            mmax = new double[n];
+            uf = new UnionFindSimple(n);
+            borderFlags = new byte[n];
+        } else {
+            uf.reset();
+
+            // Bounds are only (re)initialized for pixels in the
+            // interior, but the last row and column can still be
+            // reached by merges when minMag is zero. Clear them so
+            // that no state leaks from the previous frame.
+            for (int x = 0; x < width; x++) {
+                int idx = (height-1)*width + x;
+                tmin[idx] = tmax[idx] = mmin[idx] = mmax[idx] = 0;
+            }
+            for (int y = 0; y < height; y++) {
+                int idx = y*width + width - 1;
+                tmin[idx] = tmax[idx] = mmin[idx] = mmax[idx] = 0;
+            }
+        }
+
+        if (rowEdges == null || rowEdges.length != height) {
+            rowEdges = new int[height];
+            rowAbove = new int[height];
+        }
+    }
+}
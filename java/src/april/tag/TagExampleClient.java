@@ -8,7 +8,12 @@ import javax.imageio.*;
 
 import april.util.*;
 
-/** Demonstrates how to connect to the server for tag detections. **/
+/** Demonstrates how to connect to the server for tag detections.
+ *
+ * process() sends an image and waits for its detections. To keep
+ * several images in flight (see TagServer.pipelineDepth), call send()
+ * for each image and receive() for each response, in the same order.
+ **/
 public class TagExampleClient
 {
     Socket sock;
@@ -20,16 +25,26 @@ public class TagExampleClient
     {
         this.tf = tf;
         sock = new Socket(host, TagServer.TCP_PORT);
+        sock.setTcpNoDelay(true);
+
+        // the streams must persist across requests: a new buffered
+        // stream could discard data already read by the previous one.
+        ins = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+        outs = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
     }
 
     public ArrayList<TagDetection> process(BufferedImage im, double opticalCenter[]) throws IOException
+    {
+        send(im, opticalCenter);
+        return receive();
+    }
+
+    /** Send a detection request without waiting for the response. **/
+    public void send(BufferedImage im, double opticalCenter[]) throws IOException
     {
         // we only directly support grayscale images. This converts the image if necessary.
         im = ImageUtil.convertImage(im, BufferedImage.TYPE_BYTE_GRAY);
 
-        DataInputStream ins = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
-        DataOutputStream outs = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
-
         int width = im.getWidth(), height = im.getHeight();
 
         //////////////////////////////////////////////
@@ -43,7 +58,11 @@ public class TagExampleClient
         byte b[] = ((DataBufferByte) (im.getRaster().getDataBuffer())).getData();
         outs.write(b);
         outs.flush();
+    }
 
+    /** Read the response to the oldest request not yet received. **/
+    public ArrayList<TagDetection> receive() throws IOException
+    {
         //////////////////////////////////////////////
         // Read response
         ArrayList<TagDetection> detections = new ArrayList<TagDetection>();
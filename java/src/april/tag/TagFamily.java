@@ -41,6 +41,17 @@ public class TagFamily
     /** The array of the codes. The id for a code is its index. **/
     public final long codes[];
 
+    /** Lookup table for decode(); see CodeIndex. It is built on the
+     * first lookup and again after errorRecoveryBits changes, so
+     * code that only renders tags never pays for it. **/
+    volatile CodeIndex index;
+
+    /** Don't build a lookup table with more entries than this; fall
+     * back to a linear scan instead. (Each entry costs 12 bytes, and
+     * the table is kept at most half full, so this is about 24 MB.)
+     **/
+    public static int maxIndexEntries = 1 << 20;
+
     /** The codes array is not copied internally and so must not be
      * modified externally. **/
     public TagFamily(int bits, int minimumHammingDistance, long codes[])
@@ -56,11 +67,13 @@ public class TagFamily
     public void setErrorRecoveryBits(int b)
     {
         this.errorRecoveryBits = b;
+        index = null;
     }
 
     public void setErrorRecoveryFraction(double v)
     {
         this.errorRecoveryBits = (int) (((int) (minimumHammingDistance-1)/2)*v);
+        index = null;
     }
 
     /** if the bits in w were arranged in a d*d grid and that grid was
@@ -92,7 +105,7 @@ public class TagFamily
     /** Compute the hamming distance between two longs. **/
     public static final int hammingDistance(long a, long b)
     {
-        return popCount(a^b);
+        return Long.bitCount(a^b);
     }
 
     /** How many bits are set in the long? **/
@@ -128,6 +141,68 @@ public class TagFamily
      * id. The corresponding fields of TagDetection will be filled
      * in. **/
     public void decode(TagDetection det, long rcode)
+    {
+        if (getIndex() != null && lookup(det, rcode))
+            return;
+
+        decodeLinear(det, rcode);
+    }
+
+    /** Like decode(), but only succeeds if rcode is within
+     * errorRecoveryBits of a valid code, in which case det is filled
+     * in exactly as decode() would and true is returned. Otherwise,
+     * det.good is set to false and the remaining fields are not
+     * filled in. When a lookup table is available (the usual case),
+     * this takes constant time, making it much cheaper than decode()
+     * for observations that don't match anything. **/
+    public boolean lookup(TagDetection det, long rcode)
+    {
+        CodeIndex idx = getIndex();
+
+        if (idx == null) {
+            decodeLinear(det, rcode);
+            return det.good;
+        }
+
+        int v = idx.get(rcode);
+        if (v < 0) {
+            det.good = false;
+            return false;
+        }
+
+        det.id = CodeIndex.getId(v);
+        det.hammingDistance = CodeIndex.getHamming(v);
+        det.rotation = CodeIndex.getRotation(v);
+        det.good = true;
+        det.obsCode = rcode;
+        det.code = codes[det.id];
+
+        return true;
+    }
+
+    /** Returns the lookup table for the current value of
+     * errorRecoveryBits, building it if necessary, or null if the
+     * table would be too large. **/
+    CodeIndex getIndex()
+    {
+        CodeIndex idx = index;
+        if (idx != null && idx.errorBits == errorRecoveryBits)
+            return idx.keys == null ? null : idx;
+
+        synchronized(this) {
+            idx = index;
+            if (idx == null || idx.errorBits != errorRecoveryBits) {
+                idx = new CodeIndex(this, errorRecoveryBits);
+                index = idx;
+            }
+        }
+
+        return idx.keys == null ? null : idx;
+    }
+
+    /** Decode by comparing rcode against every code in every
+     * rotation. **/
+    void decodeLinear(TagDetection det, long rcode)
     {
         int  bestid = -1;
         int  besthamming = Integer.MAX_VALUE;
@@ -162,6 +237,138 @@ public class TagFamily
         det.code = bestcode;
     }
 
+    /** A hash table containing, for every code in every rotation,
+     * all of the words within errorBits bit errors of it. Each word
+     * maps to the (hamming distance, id, rotation) that decode()
+     * would report for it; when several codes are within range, the
+     * table keeps the one that a linear scan would have found first
+     * (lowest distance, then lowest id, then lowest rotation).
+     *
+     * Keys and values are stored in flat arrays using open
+     * addressing. Values are packed as hamming&lt;&lt;24 | id&lt;&lt;2 |
+     * rotation. If the table would be too large, keys is null.
+     **/
+    static final class CodeIndex
+    {
+        final int errorBits;
+        final long keys[];
+        final int values[];
+        final int mask;
+
+        CodeIndex(TagFamily tf, int errorBits)
+        {
+            this.errorBits = errorBits;
+
+            // How many entries would we need?
+            long nentries = 0, choose = 1;
+            for (int k = 0; k <= errorBits && k <= tf.bits; k++) {
+                nentries += choose;
+                choose = choose * (tf.bits - k) / (k + 1);
+            }
+            nentries *= 4L * tf.codes.length;
+
+            if (errorBits < 0 || nentries > maxIndexEntries || tf.codes.length >= (1 << 22)) {
+                keys = null;
+                values = null;
+                mask = 0;
+                return;
+            }
+
+            int capacity = 16;
+            while (capacity < 2*nentries)
+                capacity *= 2;
+
+            keys = new long[capacity];
+            values = new int[capacity];
+            mask = capacity - 1;
+            Arrays.fill(values, -1);
+
+            for (int id = 0; id < tf.codes.length; id++) {
+                long rotated[] = new long[4];
+                rotated[0] = tf.codes[id];
+                for (int i = 1; i < 4; i++)
+                    rotated[i] = rotate90(rotated[i-1], tf.d);
+
+                for (int rot = 0; rot < 4; rot++) {
+                    // decode() rotates the observed code 'rot' times
+                    // and compares it to the code. Equivalently, we
+                    // compare the observation to the code rotated
+                    // the other way.
+                    long w = rotated[(4 - rot) % 4];
+                    addNeighbors(w, 0, 0, tf.bits, (id << 2) | rot);
+                }
+            }
+        }
+
+        /** Add w and every word obtained by flipping up to
+         * (errorBits - hamming) of the bits below 'bit'. **/
+        void addNeighbors(long w, int hamming, int bit, int nbits, int idrot)
+        {
+            put(w, (hamming << 24) | idrot);
+
+            if (hamming == errorBits)
+                return;
+
+            for (int b = bit; b < nbits; b++)
+                addNeighbors(w ^ (1L << b), hamming + 1, b + 1, nbits, idrot);
+        }
+
+        static final int hash(long w)
+        {
+            w ^= (w >>> 33);
+            w *= 0xff51afd7ed558ccdL;
+            w ^= (w >>> 33);
+            return (int) w;
+        }
+
+        void put(long w, int v)
+        {
+            int slot = hash(w) & mask;
+
+            while (values[slot] >= 0) {
+                if (keys[slot] == w) {
+                    // keep whichever a linear scan would have reported.
+                    if (v < values[slot])
+                        values[slot] = v;
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            keys[slot] = w;
+            values[slot] = v;
+        }
+
+        /** Returns the packed value for w, or -1. **/
+        int get(long w)
+        {
+            int slot = hash(w) & mask;
+
+            while (values[slot] >= 0) {
+                if (keys[slot] == w)
+                    return values[slot];
+                slot = (slot + 1) & mask;
+            }
+
+            return -1;
+        }
+
+        static int getHamming(int v)
+        {
+            return v >>> 24;
+        }
+
+        static int getId(int v)
+        {
+            return (v >> 2) & ((1 << 22) - 1);
+        }
+
+        static int getRotation(int v)
+        {
+            return v & 3;
+        }
+    }
+
     /** Return the dimension of the tag including borders when we render it.**/
     public int getTagRenderDimension()
     {
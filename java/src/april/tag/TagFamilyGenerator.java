@@ -5,6 +5,26 @@ import java.util.*;
 import java.awt.image.*;
 import javax.imageio.*;
 
+import april.util.*;
+
+/** Generates tag families by a greedy search: candidate codes are
+ * visited in a fixed pseudo-random order, and each is accepted if it
+ * is complex enough and is at least minhamming bits from every
+ * rotation of itself and of every code accepted before it.
+ *
+ * The candidates are tested in batches. In parallel, each candidate
+ * of a batch is compared against the codes accepted before the batch
+ * began. The accepted codes are stored with all four rotations in
+ * one flat array, so each comparison is an XOR and a Long.bitCount.
+ * The few survivors are then checked, in order, against the codes
+ * accepted earlier in the same batch, and for complexity. The result
+ * is therefore the same as testing the candidates one at a time.
+ *
+ * If checkpointPath is set, the search state is written there every
+ * checkpointInterval seconds (and when the search finishes), and a
+ * search that is started with an existing checkpoint resumes from
+ * it.
+ **/
 public class TagFamilyGenerator
 {
     int nbits;
@@ -15,11 +35,29 @@ public class TagFamilyGenerator
     ArrayList<Long> codelist;
     long starttime;
 
+    // every rotation of every code in codelist.
     long rotcodes[] = new long[16384];
     int nrotcodes = 0;
 
     static final long PRIME = 982451653;
 
+    /** The number of threads to use; 0 means one per processor. **/
+    public int nthreads = 0;
+
+    /** The initial number of candidates per batch. The batch size
+     * adapts so that only a few candidates of each batch survive
+     * the parallel step. **/
+    public int batchSize = 1 << 12;
+
+    /** Where to save (and resume) the search, or null. **/
+    public String checkpointPath = null;
+
+    /** Seconds between checkpoints. **/
+    public int checkpointInterval = 300;
+
+    // the index of the next candidate to test.
+    long iter;
+
     public TagFamilyGenerator(int nbits, int minhamming, int mincomplexity)
     {
         this.nbits = nbits;
@@ -50,14 +88,23 @@ public class TagFamilyGenerator
 
     public static void main(String args[])
     {
-        if (args.length < 2) {
-            System.out.printf("usage: <nbits> <minhammingdistance> <mincomplexity>\n");
-            System.out.printf("(For all standard tags, nbits is a square.)\n");
+        GetOpt opts = new GetOpt();
+        opts.addBoolean('h', "help", false, "See this help screen");
+        opts.addString('c', "checkpoint", "", "Checkpoint file (resumed from if it exists)");
+        opts.addInt('i', "checkpoint-interval", 300, "Seconds between checkpoints");
+        opts.addInt('j', "threads", 0, "Number of threads (0 = one per processor)");
+
+        if (!opts.parse(args) || opts.getBoolean("help") || opts.getExtraArgs().size() < 2) {
+            System.out.printf("usage: [options] <nbits> <minhammingdistance> [mincomplexity]\n");
+            System.out.printf("(For all standard tags, nbits is a square.)\n\n");
+            opts.doHelp();
             return;
         }
 
-        int nbits = Integer.parseInt(args[0]);
-        int minhamming = Integer.parseInt(args[1]);
+        ArrayList<String> extra = opts.getExtraArgs();
+
+        int nbits = Integer.parseInt(extra.get(0));
+        int minhamming = Integer.parseInt(extra.get(1));
 
         // default complexity is a function of the nbits. Values
         // before were tuned by hand so they were "reasonable".
@@ -72,130 +119,115 @@ public class TagFamilyGenerator
         // This is approximately: complexity = 0.3 * nbits.
         int reccomplexity = Math.min(10, nbits / 3);
 
-        int mincomplexity = args.length > 2 ? Integer.parseInt(args[2]) : reccomplexity;
+        int mincomplexity = extra.size() > 2 ? Integer.parseInt(extra.get(2)) : reccomplexity;
 
         TagFamilyGenerator tfg = new TagFamilyGenerator(nbits, minhamming, mincomplexity);
-        tfg.compute();
+        tfg.nthreads = opts.getInt("threads");
+        tfg.checkpointInterval = opts.getInt("checkpoint-interval");
+        if (opts.getString("checkpoint").length() > 0)
+            tfg.checkpointPath = opts.getString("checkpoint");
+
+        try {
+            tfg.compute();
+        } catch (IOException ex) {
+            System.out.println("ex: "+ex);
+            return;
+        }
+
         tfg.report();
     }
 
-    boolean isCodeOkay(long v)
+    /** The i'th candidate code. **/
+    final long getCandidate(long V0, long i)
     {
-        // The tag must be different from itself when rotated.
-        if (true) {
-            long rv1 = TagFamily.rotate90(v, d);
-            long rv2 = TagFamily.rotate90(rv1, d);
-            long rv3 = TagFamily.rotate90(rv2, d);
-
-            if (!hammingDistanceAtLeast(v, rv1, minhamming) ||
-                !hammingDistanceAtLeast(v, rv2, minhamming) ||
-                !hammingDistanceAtLeast(v, rv3, minhamming) ||
-                !hammingDistanceAtLeast(rv1, rv2, minhamming) ||
-                !hammingDistanceAtLeast(rv1, rv3, minhamming) ||
-                !hammingDistanceAtLeast(rv2, rv3, minhamming)) {
-
-                return false;
-            }
-        }
-
-        // tag must be different from other tags.
-        if (true) {
-            for (int widx = 0; widx < nrotcodes; widx++) {
-
-                long w = rotcodes[widx];
+        // (the arithmetic wraps modulo 2^64, which is a multiple of
+        // 2^nbits.)
+        return (V0 + PRIME*(i + 1)) & ((1L << nbits) - 1);
+    }
 
-                if (!hammingDistanceAtLeast(v, w, minhamming)) {
-                    return false;
-                }
-            }
-        }
+    /** Is v different enough from its own rotations? **/
+    boolean isRotationOkay(long v)
+    {
+        long rv1 = TagFamily.rotate90(v, d);
+        long rv2 = TagFamily.rotate90(rv1, d);
+        long rv3 = TagFamily.rotate90(rv2, d);
+
+        return Long.bitCount(v ^ rv1) >= minhamming &&
+            Long.bitCount(v ^ rv2) >= minhamming &&
+            Long.bitCount(v ^ rv3) >= minhamming &&
+            Long.bitCount(rv1 ^ rv2) >= minhamming &&
+            Long.bitCount(rv1 ^ rv3) >= minhamming &&
+            Long.bitCount(rv2 ^ rv3) >= minhamming;
+    }
 
-        // tag must be reasonably complex
-        if (true) {
-            int complexity = computeComplexity(v, d);
-            if (complexity < mincomplexity)
+    /** Is v at least minhamming bits from rotcodes[i0] through
+     * rotcodes[i1-1]? **/
+    final boolean isDistinct(long v, long rotcodes[], int i0, int i1)
+    {
+        for (int i = i0; i < i1; i++) {
+            if (Long.bitCount(v ^ rotcodes[i]) < minhamming)
                 return false;
         }
 
         return true;
     }
 
-    class ComputeThread extends Thread
+    boolean isCodeOkay(long v)
     {
-        long goodCode = -1;
-        long goodIter = -1;
-
-        boolean stop = false;
-
-        long V0;
-        long iter0;
-        long iter1;
-
-        ComputeThread threads[];
-        int threadidx; // which thread am I?
-
-        public void run()
-        {
-
-            // compute v = V0 + PRIME * iter0,
-            // being very careful about overflow.
-            // (consider the power-of-two expansion of iter0....)
-            long v = V0;
-
-            long acc = PRIME;
-            long M = iter0;
-            while (M > 0) {
-                if ((M & 1) > 0) {
-                    v += acc;
-                    v &= ((1L<<nbits) - 1);
-                }
+        return isRotationOkay(v) &&
+            isDistinct(v, rotcodes, 0, nrotcodes) &&
+            computeComplexity(v, d) >= mincomplexity;
+    }
 
-                acc *= 2;
-                acc &= ((1L << nbits) - 1);
-                M >>= 1;
-            }
+    void addCode(long v)
+    {
+        codelist.add(v);
 
-            for (long iter = iter0; iter < iter1 && !stop; iter++) {
-                v += PRIME; // big prime.
-                v &= ((1L<<nbits) - 1);
+        // grow?
+        if (nrotcodes + 4 >= rotcodes.length)
+            rotcodes = Arrays.copyOf(rotcodes, rotcodes.length*2);
 
-                if (isCodeOkay(v)) {
-                    goodCode = v;
-                    goodIter = iter;
+        long rv1 = TagFamily.rotate90(v, d);
+        long rv2 = TagFamily.rotate90(rv1, d);
+        long rv3 = TagFamily.rotate90(rv2, d);
 
-                    for (int i = threadidx+1; i < threads.length; i++)
-                        threads[i].stop = true;
-                    return;
-                }
-            }
-        }
+        rotcodes[nrotcodes++] = v;
+        rotcodes[nrotcodes++] = rv1;
+        rotcodes[nrotcodes++] = rv2;
+        rotcodes[nrotcodes++] = rv3;
     }
 
-    public TagFamily compute()
+    public TagFamily compute() throws IOException
     {
         assert(codelist == null);
 
         codelist = new ArrayList<Long>(); // code lists
         starttime = System.currentTimeMillis();
+        iter = 0;
 
         // begin our search at a random position to avoid any bias
         // towards small numbers (which tend to have larger regions of
         // solid black).
-        long V0 = new Random(nbits*10000 + minhamming*100 + mincomplexity).nextLong();
+        final long V0 = new Random(nbits*10000 + minhamming*100 + mincomplexity).nextLong();
 
-        long lastreporttime = starttime;
-        long lastprogresstime = starttime;
-        long lastprogressiters = 0;
+        if (checkpointPath != null && new File(checkpointPath).exists()) {
+            readCheckpoint(checkpointPath, V0);
+            System.out.printf("Resuming from %s: %d codes, candidate %d.\n", checkpointPath, codelist.size(), iter);
+        }
 
-        int nthreads = Runtime.getRuntime().availableProcessors();
-        System.out.printf("Using %d threads.\n", nthreads);
+        long lastreporttime = System.currentTimeMillis();
+        long lastprogresstime = lastreporttime;
+        long lastcheckpointtime = lastreporttime;
+        long lastprogressiters = iter;
 
-        ComputeThread threads[] = new ComputeThread[nthreads];
+        ParallelFor pf = new ParallelFor(nthreads);
+        System.out.printf("Using %d threads.\n", pf.getNumThreads());
 
-        long iter = 0;
-        long chunksize = 50000;
+        final long ncandidates = 1L << nbits;
+        int batch = Math.max(1, batchSize);
+        boolean survivors[] = new boolean[0];
 
-        while (iter < (1L << nbits)) {
+        while (iter < ncandidates) {
 
             // print a progress report.
             long now = System.currentTimeMillis();
@@ -217,68 +249,68 @@ public class TagFamilyGenerator
                 lastprogressiters = iter;
             }
 
-            // fire up the threads.
-            for (int i = 0; i < threads.length; i++) {
-                threads[i] = new ComputeThread();
-                threads[i].threads = threads;
-                threads[i].threadidx = i;
-                threads[i].iter0 = iter;
-                iter += chunksize;
-                iter = Math.min(iter, 1L << nbits);
-                threads[i].iter1 = iter;
-                threads[i].V0 = V0;
+            if (checkpointPath != null && now - lastcheckpointtime > checkpointInterval*1000L) {
+                writeCheckpoint(checkpointPath, V0);
+                lastcheckpointtime = now;
             }
-            for (int i = 0; i < threads.length; i++)
-                threads[i].start();
-
 
-            // find the lowest code that was found by any thread
-            long bestCode = -1;
-            long bestIter = Long.MAX_VALUE;
+            final long iter0 = iter;
+            final int n = (int) Math.min(batch, ncandidates - iter0);
 
-//            System.out.printf(".");
-//            System.out.flush();
-
-            for (int i = 0; i < threads.length; i++) {
-                try {
-                    threads[i].join();
-                } catch (InterruptedException ex) {
-                    System.out.println("FATAL");
-                    assert(false);
-                }
+            if (survivors.length < n)
+                survivors = new boolean[n];
 
-                if (threads[i].goodIter >= 0 && threads[i].goodIter < bestIter) {
-                    bestIter = threads[i].goodIter;
-                    bestCode = threads[i].goodCode;
-                }
-            }
+            // Step one, in parallel: test the batch against the codes
+            // we had when it began.
+            final boolean ok[] = survivors;
+            final long codes[] = rotcodes;
+            final int ncodes = nrotcodes;
 
-            if (bestCode >= 0) {
+            pf.run(n, 4*pf.getNumThreads(), new ParallelFor.Task() {
+                    public void run(int i0, int i1)
+                    {
+                        for (int i = i0; i < i1; i++) {
+                            long v = getCandidate(V0, iter0 + i);
+                            ok[i] = isRotationOkay(v) && isDistinct(v, codes, 0, ncodes);
+                        }
+                    }
+                });
 
-                codelist.add(bestCode);
-                long rv1 = TagFamily.rotate90(bestCode, d);
-                long rv2 = TagFamily.rotate90(rv1, d);
-                long rv3 = TagFamily.rotate90(rv2, d);
+            // Step two: accept the survivors that are also far enough
+            // from the codes accepted earlier in this batch, and are
+            // complex enough. (The complexity test is expensive, and
+            // most candidates that pass it early in the search are
+            // rejected by a code accepted just before them, so it is
+            // not worth doing in step one.)
+            int nsurvivors = 0;
 
-                // grow?
-                if (nrotcodes + 4 >= rotcodes.length) {
-                    long newrotcodes[] = new long[rotcodes.length*2];
-                    for (int i = 0; i < rotcodes.length; i++)
-                        newrotcodes[i] = rotcodes[i];
-                    rotcodes = newrotcodes;
-                }
+            for (int i = 0; i < n; i++) {
+                if (!ok[i])
+                    continue;
 
-                rotcodes[nrotcodes++] = bestCode;
-                rotcodes[nrotcodes++] = rv1;
-                rotcodes[nrotcodes++] = rv2;
-                rotcodes[nrotcodes++] = rv3;
+                nsurvivors++;
 
-                // restart the search at the next iteration.
-                iter = bestIter + 1;
+                long v = getCandidate(V0, iter0 + i);
+                if (isDistinct(v, rotcodes, ncodes, nrotcodes) && computeComplexity(v, d) >= mincomplexity)
+                    addCode(v);
             }
 
+            iter = iter0 + n;
+
+            // Step two is serial, so keep the number of survivors
+            // small: use small batches while codes are still easy to
+            // find.
+            if (nsurvivors > 64)
+                batch = Math.max(256, batch / 2);
+            else if (nsurvivors < 16)
+                batch = Math.min(1 << 22, batch * 2);
         }
 
+        pf.shutdown();
+
+        if (checkpointPath != null)
+            writeCheckpoint(checkpointPath, V0);
+
         long codes[] = new long[codelist.size()];
         for (int i = 0; i < codelist.size(); i++)
             codes[i] = codelist.get(i);
@@ -297,6 +329,89 @@ public class TagFamilyGenerator
         return tagFamily;
     }
 
+    /** Save the parameters, the accepted codes, and the next
+     * candidate. The file is replaced atomically, so an interrupted
+     * write leaves the previous checkpoint intact. **/
+    void writeCheckpoint(String path, long V0) throws IOException
+    {
+        File f = new File(path);
+        File tmp = new File(path + ".tmp");
+
+        PrintWriter outs = new PrintWriter(new BufferedWriter(new FileWriter(tmp)));
+        outs.printf("# TagFamilyGenerator checkpoint\n");
+        outs.printf("nbits %d\n", nbits);
+        outs.printf("minhamming %d\n", minhamming);
+        outs.printf("mincomplexity %d\n", mincomplexity);
+        outs.printf("V0 %d\n", V0);
+        outs.printf("iter %d\n", iter);
+        outs.printf("elapsed %d\n", System.currentTimeMillis() - starttime);
+        outs.printf("ncodes %d\n", codelist.size());
+        for (long code : codelist)
+            outs.printf("%x\n", code);
+        outs.close();
+
+        if (outs.checkError())
+            throw new IOException("Error writing "+tmp);
+
+        if (!tmp.renameTo(f)) {
+            // some platforms won't rename over an existing file.
+            f.delete();
+            if (!tmp.renameTo(f))
+                throw new IOException("Couldn't rename "+tmp+" to "+f);
+        }
+    }
+
+    void readCheckpoint(String path, long V0) throws IOException
+    {
+        BufferedReader ins = new BufferedReader(new FileReader(path));
+
+        try {
+            HashMap<String,Long> header = new HashMap<String,Long>();
+
+            String line;
+            while ((line = ins.readLine()) != null) {
+                if (line.startsWith("#"))
+                    continue;
+
+                String toks[] = line.trim().split("\\s+");
+                if (toks.length != 2)
+                    throw new IOException("Bad checkpoint line: "+line);
+
+                header.put(toks[0], Long.parseLong(toks[1]));
+                if (toks[0].equals("ncodes"))
+                    break;
+            }
+
+            if (getHeader(header, "nbits") != nbits ||
+                getHeader(header, "minhamming") != minhamming ||
+                getHeader(header, "mincomplexity") != mincomplexity ||
+                getHeader(header, "V0") != V0)
+                throw new IOException("Checkpoint "+path+" is for a different family");
+
+            long ncodes = getHeader(header, "ncodes");
+            for (long i = 0; i < ncodes; i++) {
+                line = ins.readLine();
+                if (line == null)
+                    throw new IOException("Truncated checkpoint "+path);
+
+                addCode(Long.parseLong(line.trim(), 16));
+            }
+
+            iter = getHeader(header, "iter");
+            starttime -= getHeader(header, "elapsed");
+        } finally {
+            ins.close();
+        }
+    }
+
+    static long getHeader(HashMap<String,Long> header, String key) throws IOException
+    {
+        Long v = header.get(key);
+        if (v == null)
+            throw new IOException("Checkpoint is missing "+key);
+        return v;
+    }
+
     void report()
     {
         long codes[] = new long[codelist.size()];
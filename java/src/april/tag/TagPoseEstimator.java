@@ -0,0 +1,516 @@
+package april.tag;
+
+import java.util.*;
+
+/** Computes the 6-DOF poses of all of the tags detected in a frame.
+ *
+ * The camera model and the conventions are those of
+ * CameraUtil.homographyToPose(fx, fy, cx, cy, h): a point (X, Y, Z)
+ * in the camera frame projects to pixel (fx*X/Z + cx, fy*Y/Z + cy),
+ * and points in front of the camera have Z &lt; 0. A pose is the 4x4
+ * rigid-body transformation from the tag's frame to the camera
+ * frame. The tag's frame is centered on the tag, with x to the right
+ * and y up (as the tag is printed) and z out of the tag; the tag's
+ * corners are at (&plusmn;tagSize/2, &plusmn;tagSize/2, 0).
+ *
+ * Each pose is first computed from the detection's homography, just
+ * as by CameraUtil. If iterations is non-zero, it is then refined by
+ * Gauss-Newton to minimize the reprojection error of the four
+ * corners. Covariances, if requested, are those of the refined pose,
+ * assuming that the corners have independent errors of pixelSigma
+ * pixels in x and y. They are 6x6, over [rx ry rz tx ty tz], where
+ * (rx, ry, rz) is a small rotation (as a rotation vector, in the
+ * camera frame) applied on the left of the pose's rotation, and (tx,
+ * ty, tz) is a change in the pose's translation.
+ *
+ * When the tags belong to a TagMosaic whose spacing is known, all of
+ * their corners can be used to estimate the pose of the mosaic as a
+ * whole; see estimateMosaic().
+ *
+ * The results are written to caller-supplied arrays and the
+ * estimator does not allocate memory while estimating, so it can be
+ * used on every frame of a video stream. For the same reason, an
+ * instance must not be used by several threads at once.
+ **/
+public class TagPoseEstimator
+{
+    /** Camera intrinsics, in pixels. **/
+    public double fx, fy, cx, cy;
+
+    /** The length of a side of a tag (measured across the black
+     * border), in the units in which translations should be
+     * reported. The default of 2 matches CameraUtil. **/
+    public double tagSize = 2.0;
+
+    /** Gauss-Newton iterations used to refine each pose. Zero gives
+     * exactly the homography-based pose. **/
+    public int iterations = 0;
+
+    /** Expected corner error, in pixels, for the covariances. **/
+    public double pixelSigma = 1.0;
+
+    // Corners of a tag, in the coordinates of the homography, in the
+    // same order as TagDetection.p.
+    static final double CORNERS[][] = new double[][] { { -1, -1 },
+                                                       {  1, -1 },
+                                                       {  1,  1 },
+                                                       { -1,  1 } };
+
+    // Scratch space for the least-squares problems: the normal
+    // equations (and their Cholesky factor), and a 4x4 pose.
+    final double JtJ[][] = new double[6][6], Jtr[] = new double[6], delta[] = new double[6];
+    final double L[][] = new double[6][6];
+    final double T[][] = new double[4][4];
+
+    public TagPoseEstimator(double fx, double fy, double cx, double cy)
+    {
+        this.fx = fx;
+        this.fy = fy;
+        this.cx = cx;
+        this.cy = cy;
+    }
+
+    /** Storage for n poses. **/
+    public static double[][][] allocatePoses(int n)
+    {
+        return new double[n][4][4];
+    }
+
+    /** Storage for n covariances. **/
+    public static double[][][] allocateCovariances(int n)
+    {
+        return new double[n][6][6];
+    }
+
+    /** Estimate the pose of every detection. poses must hold at
+     * least detections.size() 4x4 matrices; covs may be null, or
+     * hold as many 6x6 matrices. **/
+    public void estimate(List<TagDetection> detections, double poses[][][], double covs[][][])
+    {
+        for (int i = 0; i < detections.size(); i++)
+            estimate(detections.get(i), poses[i], covs == null ? null : covs[i]);
+    }
+
+    /** Estimate the pose of one detection. M is the (4x4) output;
+     * cov (6x6) may be null. **/
+    public void estimate(TagDetection d, double M[][], double cov[][])
+    {
+        homographyToPose(d.homography, M);
+
+        // the homography's tags are 2 units wide.
+        for (int i = 0; i < 3; i++)
+            M[i][3] *= tagSize / 2;
+
+        if (iterations > 0 || cov != null)
+            refine(M, null, d, tagSize / 2, iterations, cov);
+    }
+
+    /** Estimate the pose of a mosaic from the detections of any of
+     * its tags, by minimizing the reprojection error of all of their
+     * corners together.
+     *
+     * The mosaic's frame has its origin at the center of tag 0, with
+     * x along the columns of the mosaic and y up (as the mosaic is
+     * printed), so that tag id is centered at (m[0], -m[1], 0), where
+     * m = mosaic.getPositionMeters(id). The tag size is implied by
+     * the mosaic's spacing (tags are adjacent, as in the mosaic
+     * image); this estimator's tagSize is not used.
+     *
+     * The initial estimate comes from the tag whose observed
+     * perimeter is the longest, and is refined with max(1,
+     * iterations) iterations.
+     *
+     * @param mosaicPose The (4x4) pose of the mosaic.
+     * @param cov The (6x6) covariance of the mosaic's pose, or null.
+     * @param poses If not null, the pose of each detected tag,
+     * derived from mosaicPose, is written here.
+     * @return The number of detections used, or 0 if there were none
+     * (in which case mosaicPose is unchanged).
+     **/
+    public int estimateMosaic(List<TagDetection> detections, TagMosaic mosaic,
+                              double mosaicPose[][], double cov[][], double poses[][][])
+    {
+        int ntags = mosaic.tf.codes.length;
+        int best = -1;
+
+        for (int i = 0; i < detections.size(); i++) {
+            TagDetection d = detections.get(i);
+            if (d.id < 0 || d.id >= ntags)
+                continue;
+
+            if (best < 0 || d.observedPerimeter > detections.get(best).observedPerimeter)
+                best = i;
+        }
+
+        if (best < 0)
+            return 0;
+
+        TagFamily tf = mosaic.tf;
+        double size = mosaic.tagSpacingMeters * (tf.d + 2*tf.blackBorder) / mosaic.getTagWidthPixels();
+
+        // initialize from the best tag: mosaic = tag * inv(offset).
+        TagDetection d0 = detections.get(best);
+        homographyToPose(d0.homography, T);
+        for (int i = 0; i < 3; i++)
+            T[i][3] *= size / 2;
+
+        double m[] = mosaic.getPositionMeters(d0.id);
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++)
+                mosaicPose[i][j] = T[i][j];
+            mosaicPose[i][3] = T[i][3] - T[i][0]*m[0] + T[i][1]*m[1];
+        }
+        mosaicPose[3][0] = mosaicPose[3][1] = mosaicPose[3][2] = 0;
+        mosaicPose[3][3] = 1;
+
+        mosaicDetections = detections;
+        int nused = refine(mosaicPose, mosaic, null, size / 2, Math.max(1, iterations), cov);
+        mosaicDetections = null;
+
+        if (poses != null) {
+            for (int i = 0; i < detections.size(); i++) {
+                TagDetection d = detections.get(i);
+                if (d.id < 0 || d.id >= ntags)
+                    continue;
+
+                // pose = mosaicPose * translate(offset).
+                m = mosaic.getPositionMeters(d.id);
+                double P[][] = poses[i];
+                for (int r = 0; r < 3; r++) {
+                    for (int c = 0; c < 3; c++)
+                        P[r][c] = mosaicPose[r][c];
+                    P[r][3] = mosaicPose[r][3] + mosaicPose[r][0]*m[0] - mosaicPose[r][1]*m[1];
+                }
+                P[3][0] = P[3][1] = P[3][2] = 0;
+                P[3][3] = 1;
+            }
+        }
+
+        return nused;
+    }
+
+    /** Gauss-Newton refinement of M against the corners of the
+     * detection d (whose corners are at CORNERS*halfSize) or, if
+     * mosaic is non-null, of all of the detections passed to
+     * estimateMosaic. Returns the number of detections used. **/
+    int refine(double M[][], TagMosaic mosaic, TagDetection d, double halfSize,
+               int niters, double cov[][])
+    {
+        // always linearize once more than we update, so that the
+        // covariance is that of the final estimate.
+        int nused = 0;
+
+        for (int iter = 0; iter <= niters; iter++) {
+            for (int i = 0; i < 6; i++) {
+                Jtr[i] = 0;
+                for (int j = 0; j < 6; j++)
+                    JtJ[i][j] = 0;
+            }
+
+            if (mosaic == null) {
+                addTag(M, d, halfSize, 0, 0);
+                nused = 1;
+            } else {
+                nused = addMosaic(M, mosaic, halfSize);
+            }
+
+            if (iter == niters)
+                break;
+
+            if (!solve(JtJ, Jtr, delta))
+                break;
+
+            update(M, delta);
+        }
+
+        if (cov != null) {
+            double s2 = pixelSigma*pixelSigma;
+            if (!invert(JtJ, cov)) {
+                for (int i = 0; i < 6; i++)
+                    for (int j = 0; j < 6; j++)
+                        cov[i][j] = (i == j) ? Double.POSITIVE_INFINITY : 0;
+            } else {
+                for (int i = 0; i < 6; i++)
+                    for (int j = 0; j < 6; j++)
+                        cov[i][j] *= s2;
+            }
+        }
+
+        return nused;
+    }
+
+    // the detections being fit by estimateMosaic.
+    List<TagDetection> mosaicDetections;
+
+    int addMosaic(double M[][], TagMosaic mosaic, double halfSize)
+    {
+        int ntags = mosaic.tf.codes.length;
+        int nused = 0;
+
+        for (int i = 0; i < mosaicDetections.size(); i++) {
+            TagDetection d = mosaicDetections.get(i);
+            if (d.id < 0 || d.id >= ntags)
+                continue;
+
+            double m[] = mosaic.getPositionMeters(d.id);
+            addTag(M, d, halfSize, m[0], -m[1]);
+            nused++;
+        }
+
+        return nused;
+    }
+
+    /** Accumulate the normal equations for the four corners of d,
+     * whose center is at (ox, oy, 0) in the frame of M. **/
+    void addTag(double M[][], TagDetection d, double halfSize, double ox, double oy)
+    {
+        for (int k = 0; k < 4; k++) {
+            double x = ox + CORNERS[k][0]*halfSize;
+            double y = oy + CORNERS[k][1]*halfSize;
+
+            // the point in the camera frame, and relative to the
+            // translation (for the rotation's derivative).
+            double rx = M[0][0]*x + M[0][1]*y;
+            double ry = M[1][0]*x + M[1][1]*y;
+            double rz = M[2][0]*x + M[2][1]*y;
+            double X = rx + M[0][3], Y = ry + M[1][3], Z = rz + M[2][3];
+
+            double iz = 1.0 / Z;
+            double u = fx*X*iz + cx, v = fy*Y*iz + cy;
+
+            double eu = d.p[k][0] - u, ev = d.p[k][1] - v;
+
+            // d(u,v)/d(X,Y,Z)
+            double ux = fx*iz, uz = -fx*X*iz*iz;
+            double vy = fy*iz, vz = -fy*Y*iz*iz;
+
+            // d(X,Y,Z)/d(rotation) = -[r]x; d(X,Y,Z)/d(translation) = I.
+            double Ju[] = Jrow0, Jv[] = Jrow1;
+            jacobianRow(ux, 0, uz, rx, ry, rz, Ju);
+            jacobianRow(0, vy, vz, rx, ry, rz, Jv);
+
+            for (int i = 0; i < 6; i++) {
+                Jtr[i] += Ju[i]*eu + Jv[i]*ev;
+                for (int j = i; j < 6; j++)
+                    JtJ[i][j] += Ju[i]*Ju[j] + Jv[i]*Jv[j];
+            }
+        }
+
+        for (int i = 0; i < 6; i++)
+            for (int j = 0; j < i; j++)
+                JtJ[i][j] = JtJ[j][i];
+    }
+
+    final double Jrow0[] = new double[6], Jrow1[] = new double[6];
+
+    /** One row of the Jacobian, given the derivative (a, b, c) of the
+     * pixel coordinate with respect to the camera-frame point, and
+     * the rotated (but not translated) model point r. **/
+    static void jacobianRow(double a, double b, double c, double rx, double ry, double rz, double J[])
+    {
+        // d(R'X)/dw for R' = exp([w]x) R is -[r]x:
+        //   [  0   rz  -ry ]
+        //   [ -rz  0    rx ]
+        //   [  ry -rx   0  ]
+        J[0] = -b*rz + c*ry;
+        J[1] = a*rz - c*rx;
+        J[2] = -a*ry + b*rx;
+        J[3] = a;
+        J[4] = b;
+        J[5] = c;
+    }
+
+    /** Apply the update [w t] to M. **/
+    static void update(double M[][], double delta[])
+    {
+        double wx = delta[0], wy = delta[1], wz = delta[2];
+        double theta = Math.sqrt(wx*wx + wy*wy + wz*wz);
+
+        // Rodrigues: exp([w]x) = I + a [w]x + b [w]x^2
+        double a, b;
+        if (theta < 1e-9) {
+            a = 1;
+            b = 0.5;
+        } else {
+            a = Math.sin(theta) / theta;
+            b = (1 - Math.cos(theta)) / (theta*theta);
+        }
+
+        double E00 = 1 - b*(wy*wy + wz*wz), E01 = -a*wz + b*wx*wy,     E02 = a*wy + b*wx*wz;
+        double E10 = a*wz + b*wx*wy,      E11 = 1 - b*(wx*wx + wz*wz), E12 = -a*wx + b*wy*wz;
+        double E20 = -a*wy + b*wx*wz,     E21 = a*wx + b*wy*wz,        E22 = 1 - b*(wx*wx + wy*wy);
+
+        for (int j = 0; j < 3; j++) {
+            double m0 = M[0][j], m1 = M[1][j], m2 = M[2][j];
+            M[0][j] = E00*m0 + E01*m1 + E02*m2;
+            M[1][j] = E10*m0 + E11*m1 + E12*m2;
+            M[2][j] = E20*m0 + E21*m1 + E22*m2;
+        }
+
+        M[0][3] += delta[3];
+        M[1][3] += delta[4];
+        M[2][3] += delta[5];
+    }
+
+    /** Solve A x = b for symmetric positive definite A by Cholesky
+     * decomposition. Returns false if A is not positive definite. **/
+    boolean solve(double A[][], double b[], double x[])
+    {
+        if (!cholesky(A))
+            return false;
+
+        // forward substitution: L y = b.
+        for (int i = 0; i < 6; i++) {
+            double acc = b[i];
+            for (int k = 0; k < i; k++)
+                acc -= L[i][k]*x[k];
+            x[i] = acc / L[i][i];
+        }
+
+        // back substitution: L' x = y.
+        for (int i = 5; i >= 0; i--) {
+            double acc = x[i];
+            for (int k = i+1; k < 6; k++)
+                acc -= L[k][i]*x[k];
+            x[i] = acc / L[i][i];
+        }
+
+        return true;
+    }
+
+    /** X = inv(A), for symmetric positive definite A. **/
+    boolean invert(double A[][], double X[][])
+    {
+        if (!cholesky(A))
+            return false;
+
+        // solve for one column of the inverse at a time.
+        for (int c = 0; c < 6; c++) {
+            for (int i = 0; i < 6; i++) {
+                double acc = (i == c) ? 1 : 0;
+                for (int k = 0; k < i; k++)
+                    acc -= L[i][k]*X[k][c];
+                X[i][c] = acc / L[i][i];
+            }
+
+            for (int i = 5; i >= 0; i--) {
+                double acc = X[i][c];
+                for (int k = i+1; k < 6; k++)
+                    acc -= L[k][i]*X[k][c];
+                X[i][c] = acc / L[i][i];
+            }
+        }
+
+        return true;
+    }
+
+    /** Factor A = L L' into L. **/
+    boolean cholesky(double A[][])
+    {
+        for (int i = 0; i < 6; i++) {
+            for (int j = 0; j <= i; j++) {
+                double acc = A[i][j];
+                for (int k = 0; k < j; k++)
+                    acc -= L[i][k]*L[j][k];
+
+                if (i == j) {
+                    if (!(acc > 0))
+                        return false;
+                    L[i][i] = Math.sqrt(acc);
+                } else {
+                    L[i][j] = acc / L[j][j];
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /** As CameraUtil.homographyToPose(fx, fy, cx, cy, h), writing
+     * into M. **/
+    void homographyToPose(double h[][], double M[][])
+    {
+        double m00 = (h[0][0]-cx*h[2][0]) / fx;
+        double m01 = (h[0][1]-cx*h[2][1]) / fx;
+        double m03 = (h[0][2]-cx*h[2][2]) / fx;
+        double m10 = (h[1][0]-cy*h[2][0]) / fy;
+        double m11 = (h[1][1]-cy*h[2][1]) / fy;
+        double m13 = (h[1][2]-cy*h[2][2]) / fy;
+        double m20 = h[2][0];
+        double m21 = h[2][1];
+        double m23 = h[2][2];
+
+        // The columns of the rotation should be unit vectors; use the
+        // geometric average of their scales.
+        double scale0 = Math.sqrt(m00*m00 + m10*m10 + m20*m20);
+        double scale1 = Math.sqrt(m01*m01 + m11*m11 + m21*m21);
+        double scale = 1.0 / Math.sqrt(scale0*scale1);
+
+        // observations must occur in front of the camera (z < 0).
+        if (m23*scale > 0)
+            scale = -scale;
+
+        M[0][0] = m00*scale;
+        M[0][1] = m01*scale;
+        M[0][3] = m03*scale;
+        M[1][0] = m10*scale;
+        M[1][1] = m11*scale;
+        M[1][3] = m13*scale;
+        M[2][0] = m20*scale;
+        M[2][1] = m21*scale;
+        M[2][3] = m23*scale;
+        M[3][0] = 0;
+        M[3][1] = 0;
+        M[3][2] = 0;
+        M[3][3] = 1;
+
+        // the third rotation column is the cross product of the others.
+        M[0][2] = M[1][0]*M[2][1] - M[2][0]*M[1][1];
+        M[1][2] = M[2][0]*M[0][1] - M[0][0]*M[2][1];
+        M[2][2] = M[0][0]*M[1][1] - M[1][0]*M[0][1];
+
+        orthonormalize(M);
+    }
+
+    /** Replace the rotation part of M by the nearest rotation (its
+     * polar decomposition), by the iteration R = (R + inv(R)')/2,
+     * which converges quickly for the nearly orthogonal matrices
+     * that we have. **/
+    static void orthonormalize(double M[][])
+    {
+        double a = M[0][0], b = M[0][1], c = M[0][2];
+        double d = M[1][0], e = M[1][1], f = M[1][2];
+        double g = M[2][0], h = M[2][1], i = M[2][2];
+
+        for (int iter = 0; iter < 30; iter++) {
+            // inv(R)' is the cofactor matrix divided by det(R).
+            double c00 = e*i - f*h, c01 = f*g - d*i, c02 = d*h - e*g;
+            double c10 = c*h - b*i, c11 = a*i - c*g, c12 = b*g - a*h;
+            double c20 = b*f - c*e, c21 = c*d - a*f, c22 = a*e - b*d;
+
+            double det = a*c00 + b*c01 + c*c02;
+            if (det == 0)
+                break;
+
+            double s = 0.5 / det;
+            double na = 0.5*a + s*c00, nb = 0.5*b + s*c01, nc = 0.5*c + s*c02;
+            double nd = 0.5*d + s*c10, ne = 0.5*e + s*c11, nf = 0.5*f + s*c12;
+            double ng = 0.5*g + s*c20, nh = 0.5*h + s*c21, ni = 0.5*i + s*c22;
+
+            double change = Math.abs(na-a) + Math.abs(nb-b) + Math.abs(nc-c) +
+                Math.abs(nd-d) + Math.abs(ne-e) + Math.abs(nf-f) +
+                Math.abs(ng-g) + Math.abs(nh-h) + Math.abs(ni-i);
+
+            a = na; b = nb; c = nc;
+            d = nd; e = ne; f = nf;
+            g = ng; h = nh; i = ni;
+
+            if (change < 1e-15)
+                break;
+        }
+
+        M[0][0] = a; M[0][1] = b; M[0][2] = c;
+        M[1][0] = d; M[1][1] = e; M[1][2] = f;
+        M[2][0] = g; M[2][1] = h; M[2][2] = i;
+    }
+}
@@ -2,30 +2,137 @@ package april.tag;
 
 import java.awt.image.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.io.*;
 import java.net.*;
 
 import april.util.*;
 
-/** A server that detects tags over a TCP connection. **/
+/** A server that detects tags over a TCP connection.
+ *
+ * Each request consists of the tag family class name (UTF), the
+ * image width and height (ints), the optical center (two doubles) and
+ * the grayscale image, one byte per pixel. The response is the number
+ * of detections (int) followed by the fields of each detection (see
+ * TagExampleClient).
+ *
+ * Detection runs on a fixed pool of worker threads shared by all
+ * clients, using detectors that are cached per tag family. A client
+ * may send up to pipelineDepth requests before reading the
+ * responses; responses are always sent in the order of the requests.
+ **/
 public class TagServer
 {
     public static final int TCP_PORT = 15339;
 
+    /** The maximum number of requests per client that are being
+     * processed (or whose responses have not yet been sent) at any
+     * time. With a depth of 1, requests are handled strictly one at
+     * a time. **/
+    public final int pipelineDepth;
+
+    public final boolean verbose;
+
+    final int port;
+    final ExecutorService workers;
+
+    // The tag families and idle detectors for each tag family class
+    // name. Detectors are not thread safe, so each one is used by at
+    // most one worker at a time.
+    HashMap<String, TagFamily> tagFamilies = new HashMap<String, TagFamily>();
+    HashMap<String, ArrayList<TagDetector>> idleDetectors = new HashMap<String, ArrayList<TagDetector>>();
+
     public TagServer()
     {
+        this(TCP_PORT, 0);
+    }
+
+    /** @param nthreads The number of worker threads (0 = one per
+     * available processor). **/
+    public TagServer(int port, int nthreads)
+    {
+        this(port, nthreads, 4, true);
+    }
+
+    /** @param nthreads The number of worker threads (0 = one per
+     * available processor).
+     * @param pipelineDepth See pipelineDepth.
+     * @param verbose Print a line per request. **/
+    public TagServer(int port, int nthreads, int pipelineDepth, boolean verbose)
+    {
+        if (nthreads < 1)
+            nthreads = Runtime.getRuntime().availableProcessors();
+
+        this.port = port;
+        this.pipelineDepth = Math.max(1, pipelineDepth);
+        this.verbose = verbose;
+
+        workers = Executors.newFixedThreadPool(nthreads, new ThreadFactory() {
+                int count = 0;
+
+                public synchronized Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "TagServer worker "+(count++));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
         new AcceptThread().start();
     }
 
+    /** Returns null if the class cannot be instantiated. Only
+     * successes are cached: the names come from clients, so caching
+     * failures would let the map grow without bound. **/
+    synchronized TagFamily getTagFamily(String tagFamilyClass)
+    {
+        TagFamily tf = tagFamilies.get(tagFamilyClass);
+        if (tf != null)
+            return tf;
+
+        try {
+            tf = (TagFamily) ReflectUtil.createObject(tagFamilyClass);
+        } catch (ClassCastException ex) {
+        }
+
+        if (tf != null)
+            tagFamilies.put(tagFamilyClass, tf);
+
+        return tf;
+    }
+
+    synchronized TagDetector getDetector(String tagFamilyClass)
+    {
+        ArrayList<TagDetector> idle = idleDetectors.get(tagFamilyClass);
+
+        if (idle == null || idle.size() == 0)
+            return new TagDetector(getTagFamily(tagFamilyClass));
+
+        return idle.remove(idle.size() - 1);
+    }
+
+    synchronized void releaseDetector(String tagFamilyClass, TagDetector td)
+    {
+        ArrayList<TagDetector> idle = idleDetectors.get(tagFamilyClass);
+
+        if (idle == null) {
+            idle = new ArrayList<TagDetector>();
+            idleDetectors.put(tagFamilyClass, idle);
+        }
+
+        idle.add(td);
+    }
+
     class AcceptThread extends Thread
     {
         public void run()
         {
             try {
-                ServerSocket serverSock = new ServerSocket(TCP_PORT);
+                ServerSocket serverSock = new ServerSocket(port);
 
                 while (true) {
                     Socket sock = serverSock.accept();
+                    sock.setTcpNoDelay(true);
                     new ClientThread(sock).start();
                 }
             } catch (IOException ex) {
@@ -35,10 +142,83 @@ public class TagServer
         }
     }
 
+    /** One detection request, run on a worker thread. The response
+     * is encoded by the worker too, so that sending it is just a
+     * single write. **/
+    class DetectTask implements Callable<byte[]>
+    {
+        String tagFamilyClass;
+        int width, height;
+        double opticalCenter[];
+        byte gray[];
+
+        public byte[] call() throws IOException
+        {
+            Tic tic = new Tic();
+
+            TagDetector td = getDetector(tagFamilyClass);
+            ArrayList<TagDetection> detections;
+
+            try {
+                detections = td.process(gray, width, height, width, opticalCenter);
+            } finally {
+                releaseDetector(tagFamilyClass, td);
+            }
+
+            // 1 + 8 + 8 + 4*3 + 8*(8+2+1+9+2) bytes per detection
+            ByteArrayOutputStream bouts = new ByteArrayOutputStream(4 + 205*detections.size());
+            DataOutputStream outs = new DataOutputStream(bouts);
+
+            outs.writeInt(detections.size());
+            for (TagDetection d : detections) {
+                outs.writeBoolean(d.good);
+                outs.writeLong(d.obsCode);
+                outs.writeLong(d.code);
+                outs.writeInt(d.id);
+                outs.writeInt(d.hammingDistance);
+                outs.writeInt(d.rotation);
+                for (int i = 0; i < 4; i++)
+                    for (int j = 0; j < 2; j++)
+                        outs.writeDouble(d.p[i][j]);
+                for (int i = 0; i < 2; i++)
+                    outs.writeDouble(d.cxy[i]);
+                outs.writeDouble(d.observedPerimeter);
+                for (int i = 0; i < 3; i++)
+                    for (int j = 0; j < 3; j++)
+                        outs.writeDouble(d.homography[i][j]);
+                for (int i = 0; i < 2; i++)
+                    outs.writeDouble(d.hxy[i]);
+            }
+            outs.flush();
+
+            if (verbose)
+                System.out.printf("   Processed %d x %d image, detected %d tags in %.2f ms\n",
+                                  width, height, detections.size(), tic.toc() * 1000);
+
+            return bouts.toByteArray();
+        }
+    }
+
+    /** Reads requests from a client and submits them to the workers. **/
     class ClientThread extends Thread
     {
         Socket sock;
 
+        // responses in request order, terminated by END.
+        LinkedBlockingQueue<Future<byte[]>> pending = new LinkedBlockingQueue<Future<byte[]>>();
+        final Future<byte[]> END = new FutureTask<byte[]>(new Callable<byte[]>() {
+                public byte[] call()
+                {
+                    return null;
+                }
+            });
+
+        // set by the writer if the connection fails.
+        volatile boolean closed;
+
+        // limits the number of requests in flight.
+        Semaphore inFlight = new Semaphore(pipelineDepth);
+
         public ClientThread(Socket sock)
         {
             this.sock = sock;
@@ -46,76 +226,134 @@ public class TagServer
 
         public void run()
         {
+            WriterThread writer = null;
+
             try {
                 DataInputStream ins = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
-                DataOutputStream outs = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream()));
+
+                writer = new WriterThread(new BufferedOutputStream(sock.getOutputStream()));
+                writer.start();
 
                 System.out.println("Client connected");
 
                 while (true) {
-                    Tic tic = new Tic();
-
                     //////////////////////////////////////////////////////
                     // read image/request
 
-                    String tagFamilyClass = ins.readUTF();
-                    int width = ins.readInt();
-                    int height = ins.readInt();
-                    double opticalCenter[] = new double[] { ins.readDouble(),
-                                                            ins.readDouble() };
-
-                    // read grayscale image, one byte per pixel
-                    BufferedImage im = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
-                    byte b[] = ((DataBufferByte) (im.getRaster().getDataBuffer())).getData();
+                    DetectTask task = new DetectTask();
 
-                    ins.readFully(b);
+                    task.tagFamilyClass = ins.readUTF();
+                    task.width = ins.readInt();
+                    task.height = ins.readInt();
+                    task.opticalCenter = new double[] { ins.readDouble(),
+                                                        ins.readDouble() };
 
-                    TagFamily tf = (TagFamily) ReflectUtil.createObject(tagFamilyClass);
-                    if (tf == null)
+                    if (task.width < 0 || task.height < 0 ||
+                        (long) task.width*task.height > Integer.MAX_VALUE) {
+                        System.out.println("Bad image size: "+task.width+" x "+task.height);
                         break;
+                    }
 
-                    TagDetector td = new TagDetector(tf);
+                    // read grayscale image, one byte per pixel
+                    task.gray = new byte[task.width*task.height];
+                    ins.readFully(task.gray);
 
-                    ArrayList<TagDetection> detections = td.process(im, opticalCenter);
+                    if (getTagFamily(task.tagFamilyClass) == null)
+                        break;
 
-                    //////////////////////////////////////////////////////
-                    // output results
-                    outs.writeInt(detections.size());
-                    for (TagDetection d : detections) {
-                        outs.writeBoolean(d.good);
-                        outs.writeLong(d.obsCode);
-                        outs.writeLong(d.code);
-                        outs.writeInt(d.id);
-                        outs.writeInt(d.hammingDistance);
-                        outs.writeInt(d.rotation);
-                        for (int i = 0; i < 4; i++)
-                            for (int j = 0; j < 2; j++)
-                                outs.writeDouble(d.p[i][j]);
-                        for (int i = 0; i < 2; i++)
-                            outs.writeDouble(d.cxy[i]);
-                        outs.writeDouble(d.observedPerimeter);
-                        for (int i = 0; i < 3; i++)
-                            for (int j = 0; j < 3; j++)
-                                outs.writeDouble(d.homography[i][j]);
-                        for (int i = 0; i < 2; i++)
-                            outs.writeDouble(d.hxy[i]);
-                        outs.flush();
-                    }
+                    inFlight.acquire();
+
+                    if (closed)
+                        break;
 
-                    System.out.printf("   Processed %d x %d image, detected %d tags in %.2f ms\n", width, height, detections.size(), tic.toc() * 1000);
+                    pending.put(workers.submit(task));
                 }
 
-                sock.close();
             } catch (EOFException ex) {
                 System.out.println("Client disconnected");
             } catch (IOException ex) {
                 System.out.println("ex: "+ex);
+            } catch (InterruptedException ex) {
+                System.out.println("ex: "+ex);
+            } finally {
+                if (writer != null) {
+                    // let the writer send the outstanding responses,
+                    // then close the connection.
+                    pending.add(END);
+                    try {
+                        writer.join();
+                    } catch (InterruptedException ex) {
+                    }
+                }
+
+                try {
+                    sock.close();
+                } catch (IOException ex) {
+                }
+            }
+        }
+
+        /** Sends the responses in order, one flush per response. **/
+        class WriterThread extends Thread
+        {
+            OutputStream outs;
+
+            WriterThread(OutputStream outs)
+            {
+                this.outs = outs;
+            }
+
+            public void run()
+            {
+                try {
+                    while (true) {
+                        Future<byte[]> f = pending.take();
+
+                        if (f == END)
+                            break;
+
+                        byte response[] = f.get();
+
+                        outs.write(response);
+                        outs.flush();
+
+                        inFlight.release();
+                    }
+                } catch (IOException ex) {
+                    System.out.println("ex: "+ex);
+                } catch (InterruptedException ex) {
+                    System.out.println("ex: "+ex);
+                } catch (ExecutionException ex) {
+                    System.out.println("ex: "+ex.getCause());
+                } finally {
+                    // don't leave the reader waiting for a permit.
+                    closed = true;
+                    inFlight.release(pipelineDepth);
+                }
             }
         }
     }
 
     public static void main(String args[])
     {
-        new TagServer();
+        GetOpt opts  = new GetOpt();
+        opts.addBoolean('h',"help",false,"See this help screen");
+        opts.addInt('p',"port",TCP_PORT,"TCP port");
+        opts.addInt('t',"threads",0,"Worker threads (0 = one per processor)");
+        opts.addInt('d',"pipeline-depth",4,"Requests in flight per client (1 = no pipelining)");
+        opts.addBoolean('q',"quiet",false,"Don't print a line per request");
+
+        if (!opts.parse(args)) {
+            System.out.println("option error: "+opts.getReason());
+        }
+
+        if (opts.getBoolean("help")) {
+            System.out.println("Usage: TagServer [options]");
+            opts.doHelp();
+            System.exit(1);
+        }
+
+        new TagServer(opts.getInt("port"), opts.getInt("threads"),
+                      opts.getInt("pipeline-depth"), !opts.getBoolean("quiet"));
     }
 }
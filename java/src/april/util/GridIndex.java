@@ -0,0 +1,195 @@
+package april.util;
+
+import java.util.*;
+
+/** A 2D lookup table of points, like Gridder, for range queries over
+ * many objects that are all known up front.
+ *
+ * The points are identified by their index, 0 to n-1, in the
+ * coordinate arrays passed to build(). Building makes two passes
+ * over them: one counts the points in each cell, the other stores
+ * their indices, so that the points of every cell are contiguous in
+ * a single int array (a "compressed sparse row" layout). A query
+ * visits the cells in the search square row by row, and the points
+ * within a cell most recently added first; this is the same order
+ * in which Gridder returns them when its objects are added in index
+ * order.
+ *
+ * Once its arrays are large enough, neither build() nor find()
+ * allocates, so an index can be rebuilt every frame without creating
+ * garbage. Queries do not modify the index, and may be made by
+ * several threads at once.
+ **/
+public final class GridIndex
+{
+    /** Receives the results of find(). **/
+    public interface Visitor
+    {
+        public void visit(int id);
+    }
+
+    final double x0, y0, metersPerCell;
+    final int width, height;
+
+    // the points in cell c are items[cellStart[c]] to
+    // items[cellStart[c+1]-1].
+    final int cellStart[];
+    int items[] = new int[0];
+
+    // the cell of each point, or -1, saved between the two passes.
+    int cellOf[] = new int[0];
+
+    int size;
+
+    public GridIndex(double x0, double y0, double x1, double y1, double metersPerCell)
+    {
+        this.x0 = x0;
+        this.y0 = y0;
+        this.metersPerCell = metersPerCell;
+
+        width = (int) ((x1 - x0)/metersPerCell + 1);
+        height = (int) ((y1 - y0)/metersPerCell + 1);
+
+        cellStart = new int[width*height + 1];
+    }
+
+    /** Does this index cover the same area as the given parameters? **/
+    public boolean hasBounds(double x0, double y0, double x1, double y1, double metersPerCell)
+    {
+        return this.x0 == x0 && this.y0 == y0 && this.metersPerCell == metersPerCell &&
+            width == (int) ((x1 - x0)/metersPerCell + 1) &&
+            height == (int) ((y1 - y0)/metersPerCell + 1);
+    }
+
+    /** Replace the contents of the index with the points (xs[i],
+     * ys[i]) for 0 &lt;= i &lt; n. Points outside the grid are
+     * dropped. **/
+    public void build(double xs[], double ys[], int n)
+    {
+        if (cellOf.length < n) {
+            cellOf = new int[n];
+            items = new int[n];
+        }
+
+        Arrays.fill(cellStart, 0);
+
+        // pass one: count. cellStart[c+1] is the size of cell c.
+        size = 0;
+        for (int i = 0; i < n; i++) {
+            int ix = (int) ((xs[i] - x0)/metersPerCell);
+            int iy = (int) ((ys[i] - y0)/metersPerCell);
+
+            if (ix >= 0 && iy >= 0 && ix < width && iy < height) {
+                int c = iy*width + ix;
+                cellOf[i] = c;
+                cellStart[c + 1]++;
+                size++;
+            } else {
+                cellOf[i] = -1;
+            }
+        }
+
+        for (int c = 1; c < cellStart.length; c++)
+            cellStart[c] += cellStart[c - 1];
+
+        // pass two: fill, last point first. cellStart[c] advances to
+        // the start of cell c+1...
+        for (int i = n - 1; i >= 0; i--) {
+            int c = cellOf[i];
+            if (c >= 0)
+                items[cellStart[c]++] = i;
+        }
+
+        // ... so shift it back.
+        for (int c = cellStart.length - 1; c > 0; c--)
+            cellStart[c] = cellStart[c - 1];
+        cellStart[0] = 0;
+    }
+
+    /** The number of points in the index. This bounds the number of
+     * results of any query. **/
+    public int size()
+    {
+        return size;
+    }
+
+    /** Write the ids of the points in the cells within range of (x,
+     * y) into out, returning the number of them. out must hold at
+     * least size() elements. As with Gridder, this may include points
+     * that are up to one cell further away than range. **/
+    public int find(double x, double y, double range, int out[])
+    {
+        int ix0 = clamp((int) ((x - range - x0)/metersPerCell), width);
+        int iy0 = clamp((int) ((y - range - y0)/metersPerCell), height);
+        int ix1 = clamp((int) ((x + range - x0)/metersPerCell), width);
+        int iy1 = clamp((int) ((y + range - y0)/metersPerCell), height);
+
+        int n = 0;
+
+        for (int iy = iy0; iy <= iy1; iy++) {
+            // the cells of one row of the square are contiguous.
+            int i0 = cellStart[iy*width + ix0];
+            int i1 = cellStart[iy*width + ix1 + 1];
+
+            System.arraycopy(items, i0, out, n, i1 - i0);
+            n += i1 - i0;
+        }
+
+        return n;
+    }
+
+    /** Call visitor for each of the points in the cells within range
+     * of (x, y). **/
+    public void find(double x, double y, double range, Visitor visitor)
+    {
+        int ix0 = clamp((int) ((x - range - x0)/metersPerCell), width);
+        int iy0 = clamp((int) ((y - range - y0)/metersPerCell), height);
+        int ix1 = clamp((int) ((x + range - x0)/metersPerCell), width);
+        int iy1 = clamp((int) ((y + range - y0)/metersPerCell), height);
+
+        for (int iy = iy0; iy <= iy1; iy++) {
+            int i1 = cellStart[iy*width + ix1 + 1];
+
+            for (int i = cellStart[iy*width + ix0]; i < i1; i++)
+                visitor.visit(items[i]);
+        }
+    }
+
+    static int clamp(int i, int n)
+    {
+        return Math.max(0, Math.min(n - 1, i));
+    }
+
+    public static void main(String args[])
+    {
+        Random r = new Random();
+
+        int n = 1000;
+        double xs[] = new double[n], ys[] = new double[n];
+        Gridder<Integer> g = new Gridder<Integer>(0, 0, 1, 1, 0.1);
+
+        for (int i = 0; i < n; i++) {
+            xs[i] = r.nextDouble();
+            ys[i] = r.nextDouble();
+            g.add(xs[i], ys[i], i);
+        }
+
+        GridIndex gi = new GridIndex(0, 0, 1, 1, 0.1);
+        gi.build(xs, ys, n);
+
+        int out[] = new int[gi.size()];
+
+        // the results must match Gridder's, in the same order.
+        for (int i = 0; i < 10000; i++) {
+            double x = r.nextDouble(), y = r.nextDouble(), range = r.nextDouble()*0.5;
+
+            int nfound = gi.find(x, y, range, out);
+            int j = 0;
+            for (int id : g.find(x, y, range)) {
+                assert(j < nfound && out[j] == id);
+                j++;
+            }
+            assert(j == nfound);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package april.util;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A fixed pool of worker threads that splits an index range [0, n)
+ * into contiguous chunks and processes them concurrently. The
+ * calling thread works on one of the chunks itself and blocks until
+ * all of them are done.
+ *
+ * The chunk boundaries depend only on n and the number of chunks,
+ * never on scheduling, so a task that writes disjoint outputs for
+ * each index produces exactly the same result as a serial loop.
+ **/
+public class ParallelFor
+{
+    public interface Task
+    {
+        /** Process the indices [i0, i1). **/
+        public void run(int i0, int i1);
+    }
+
+    final int nthreads;
+    final ExecutorService exec;
+
+    /** @param nthreads The number of threads (including the caller)
+     * that will work on each range. Values less than one are
+     * replaced with the number of available processors.
+     **/
+    public ParallelFor(int nthreads)
+    {
+        if (nthreads < 1)
+            nthreads = Runtime.getRuntime().availableProcessors();
+
+        this.nthreads = nthreads;
+
+        if (nthreads == 1) {
+            exec = null;
+            return;
+        }
+
+        exec = Executors.newFixedThreadPool(nthreads - 1, new ThreadFactory() {
+                int count = 0;
+
+                public synchronized Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "ParallelFor worker "+(count++));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+    }
+
+    public int getNumThreads()
+    {
+        return nthreads;
+    }
+
+    /** Process [0, n) using one chunk per thread. **/
+    public void run(int n, Task task)
+    {
+        run(n, nthreads, task);
+    }
+
+    /** Process [0, n) split into (at most) nchunks contiguous
+     * chunks. Using more chunks than threads helps balance ranges
+     * whose elements have very different costs.
+     **/
+    public void run(int n, int nchunks, final Task task)
+    {
+        nchunks = Math.min(nchunks, n);
+
+        if (exec == null || nchunks <= 1) {
+            if (n > 0)
+                task.run(0, n);
+            return;
+        }
+
+        ArrayList<Future<?>> futures = new ArrayList<Future<?>>();
+
+        // chunk 0 is run by the calling thread.
+        for (int chunk = 1; chunk < nchunks; chunk++) {
+            final int i0 = chunkBegin(n, nchunks, chunk);
+            final int i1 = chunkBegin(n, nchunks, chunk + 1);
+
+            futures.add(exec.submit(new Runnable() {
+                    public void run()
+                    {
+                        task.run(i0, i1);
+                    }
+                }));
+        }
+
+        task.run(0, chunkBegin(n, nchunks, 1));
+
+        for (Future<?> f : futures) {
+            try {
+                f.get();
+            } catch (InterruptedException ex) {
+                throw new RuntimeException(ex);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+    /** The first index of chunk 'chunk' when [0, n) is divided into
+     * nchunks nearly equal pieces. **/
+    public static int chunkBegin(int n, int nchunks, int chunk)
+    {
+        return (int) (((long) n) * chunk / nchunks);
+    }
+
+    /** Stop the worker threads. The object cannot be used afterwards. **/
+    public void shutdown()
+    {
+        if (exec != null)
+            exec.shutdown();
+    }
+}
@@ -0,0 +1,179 @@
+package april.util;
+
+import java.util.*;
+
+/** Stable sort of packed long values (such as the edges built by
+ * TagDetector and FHSegment) by a small non-negative integer key,
+ * v[i]&amp;mask.
+ *
+ * This is a least-significant-digit radix sort. Keys of up to
+ * digitBits bits (such as the 16 bit edge weights) are sorted with a
+ * single counting pass; wider keys take two or more passes. (Two
+ * passes over a 16 bit key, with histograms small enough for the L1
+ * cache, turn out to be slower than one pass with a 256 KB
+ * histogram.) Given a ParallelFor, each thread histograms and then
+ * scatters its own contiguous chunk of the input; since every chunk
+ * writes to precomputed, disjoint output positions, the result is
+ * identical to a serial sort.
+ *
+ * The histograms and the scratch buffer are kept between calls, so
+ * sorting a stream of similarly sized arrays does not allocate. An
+ * instance must therefore not be used by more than one thread at a
+ * time.
+ **/
+public final class RadixSort
+{
+    /** The maximum number of key bits sorted per pass. **/
+    public int digitBits = 16;
+
+    /** Inputs shorter than this are not split between threads. **/
+    public int minChunkSize = 1 << 14;
+
+    // per-chunk histograms, then output positions.
+    int counts[][] = new int[0][];
+
+    // the output of alternate passes, and the default destination.
+    long scratch[], sorted[];
+
+    /** Sort the first n elements of v (which is not modified). The
+     * result is written to out if it is non-null (it must hold at
+     * least n elements and must not be v), else to a buffer owned by
+     * this object, which is overwritten by the next call. Returns the
+     * array containing the result. pf may be null.
+     *
+     * @param maxv The largest key in v, or a negative number to find
+     * it.
+     **/
+    public long[] sort(long v[], int n, int maxv, long mask, long out[], ParallelFor pf)
+    {
+        if (out == null) {
+            if (sorted == null || sorted.length < n)
+                sorted = new long[n];
+            out = sorted;
+        }
+
+        assert(out != v && out.length >= n);
+
+        int nchunks = 1;
+        if (pf != null)
+            nchunks = Math.max(1, Math.min(pf.getNumThreads(), n / Math.max(1, minChunkSize)));
+
+        if (maxv < 0)
+            maxv = findMax(v, n, mask, nchunks, pf);
+
+        int nbits = 32 - Integer.numberOfLeadingZeros(maxv);
+        int dbits = Math.max(1, digitBits);
+        int npasses = Math.max(1, (nbits + dbits - 1) / dbits);
+        int passBits = (nbits + npasses - 1) / npasses;
+
+        if (npasses > 1 && (scratch == null || scratch.length < n))
+            scratch = new long[n];
+
+        // arrange for the last pass to write into out.
+        long src[] = v;
+        long dst[] = ((npasses & 1) == 0) ? scratch : out;
+
+        for (int pass = 0; pass < npasses; pass++) {
+            radixPass(src, dst, n, mask, pass*passBits, (1 << passBits) - 1, nchunks, pf);
+
+            src = dst;
+            dst = (dst == out) ? scratch : out;
+        }
+
+        return out;
+    }
+
+    /** As above, but always allocates the output. **/
+    public static long[] sort(long v[], int n, int maxv, long mask)
+    {
+        return new RadixSort().sort(v, n, maxv, mask, new long[n], null);
+    }
+
+    static int findMax(final long v[], final int n, final long mask, final int nchunks, ParallelFor pf)
+    {
+        final int max[] = new int[nchunks];
+
+        run(pf, nchunks, new ParallelFor.Task() {
+                public void run(int c0, int c1)
+                {
+                    for (int c = c0; c < c1; c++) {
+                        int m = 0;
+                        int i1 = ParallelFor.chunkBegin(n, nchunks, c + 1);
+                        for (int i = ParallelFor.chunkBegin(n, nchunks, c); i < i1; i++)
+                            m = Math.max(m, (int) (v[i]&mask));
+                        max[c] = m;
+                    }
+                }
+            });
+
+        int m = 0;
+        for (int c = 0; c < nchunks; c++)
+            m = Math.max(m, max[c]);
+
+        return m;
+    }
+
+    /** Stably distribute src into dst by the digit (key >> shift) &amp;
+     * digitMask. **/
+    void radixPass(final long src[], final long dst[], final int n,
+                   final long mask, final int shift, final int digitMask,
+                   final int nchunks, ParallelFor pf)
+    {
+        final int nbins = digitMask + 1;
+
+        if (counts.length < nchunks || counts[0].length < nbins) {
+            counts = new int[Math.max(nchunks, counts.length)][];
+            for (int c = 0; c < counts.length; c++)
+                counts[c] = new int[nbins];
+        }
+
+        final int cnts[][] = counts;
+
+        run(pf, nchunks, new ParallelFor.Task() {
+                public void run(int c0, int c1)
+                {
+                    for (int c = c0; c < c1; c++) {
+                        int cnt[] = cnts[c];
+                        Arrays.fill(cnt, 0, nbins, 0);
+
+                        int i1 = ParallelFor.chunkBegin(n, nchunks, c + 1);
+                        for (int i = ParallelFor.chunkBegin(n, nchunks, c); i < i1; i++)
+                            cnt[((int) (src[i]&mask) >>> shift) & digitMask]++;
+                    }
+                }
+            });
+
+        // Convert the counts into output positions: all the elements
+        // with smaller digits come first, then those with the same
+        // digit from earlier chunks.
+        int pos = 0;
+        for (int b = 0; b < nbins; b++) {
+            for (int c = 0; c < nchunks; c++) {
+                int cnt = cnts[c][b];
+                cnts[c][b] = pos;
+                pos += cnt;
+            }
+        }
+
+        run(pf, nchunks, new ParallelFor.Task() {
+                public void run(int c0, int c1)
+                {
+                    for (int c = c0; c < c1; c++) {
+                        int next[] = cnts[c];
+
+                        int i1 = ParallelFor.chunkBegin(n, nchunks, c + 1);
+                        for (int i = ParallelFor.chunkBegin(n, nchunks, c); i < i1; i++)
+                            dst[next[((int) (src[i]&mask) >>> shift) & digitMask]++] = src[i];
+                    }
+                }
+            });
+    }
+
+    static void run(ParallelFor pf, int nchunks, ParallelFor.Task task)
+    {
+        if (pf == null || nchunks == 1)
+            task.run(0, nchunks);
+        else
+            pf.run(nchunks, nchunks, task);
+    }
+}
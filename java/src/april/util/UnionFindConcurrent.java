@@ -0,0 +1,175 @@
+package april.util;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/** A disjoint set data structure that may be shared by any number of
+ * threads without locking. The interface is that of UnionFindSimple.
+ *
+ * Each entry holds either the id of the node's parent or, for a
+ * representative, the negated size of its set. Two sets are joined
+ * by a compare-and-set on one representative's entry, always making
+ * the representative with the larger id a child of the one with the
+ * smaller id; since parents therefore always have smaller ids than
+ * their children, concurrent joins can never form a cycle.
+ * getRepresentative() compresses paths by halving, also with
+ * compare-and-set.
+ *
+ * Because the representative is chosen by id rather than by size,
+ * the representatives (though not the sets) generally differ from
+ * those of UnionFindSimple. Set sizes are exact once all of the
+ * threads connecting nodes have finished; while they are running,
+ * getSetSize() may briefly under-count a set that is being joined.
+ **/
+public final class UnionFindConcurrent
+{
+    final AtomicIntegerArray data;
+
+    /** @param maxid The maximum node id that will be referenced. **/
+    public UnionFindConcurrent(int maxid)
+    {
+        data = new AtomicIntegerArray(maxid);
+
+        reset();
+    }
+
+    /** Make every node a set of its own. Not thread safe. **/
+    public void reset()
+    {
+        for (int i = 0; i < data.length(); i++)
+            data.set(i, -1);
+    }
+
+    public int size()
+    {
+        return data.length();
+    }
+
+    public int getSetSize(int id)
+    {
+        while (true) {
+            int root = getRepresentative(id);
+            int v = data.get(root);
+
+            // root may have been joined to another set since we found it.
+            if (v < 0)
+                return -v;
+        }
+    }
+
+    public int getRepresentative(int id)
+    {
+        while (true) {
+            int parent = data.get(id);
+            if (parent < 0)
+                return id;
+
+            int grandparent = data.get(parent);
+            if (grandparent < 0)
+                return parent;
+
+            // if this fails, someone else has shortened the path already.
+            data.compareAndSet(id, parent, grandparent);
+            id = grandparent;
+        }
+    }
+
+    /** returns the id of the merged node. **/
+    public int connectNodes(int aid, int bid)
+    {
+        while (true) {
+            int aroot = getRepresentative(aid);
+            int broot = getRepresentative(bid);
+
+            if (aroot == broot)
+                return aroot;
+
+            int child = Math.max(aroot, broot);
+            int root = Math.min(aroot, broot);
+
+            int childsz = data.get(child);
+            if (childsz >= 0)
+                continue; // child was joined to some other set; retry.
+
+            if (data.compareAndSet(child, childsz, root)) {
+                addSize(root, -childsz);
+                return root;
+            }
+        }
+    }
+
+    /** Add sz to the size of the set containing id. **/
+    void addSize(int id, int sz)
+    {
+        while (true) {
+            int v = data.get(id);
+
+            if (v >= 0) {
+                // no longer a representative: the size we add must
+                // go to wherever the set has been joined.
+                id = getRepresentative(id);
+                continue;
+            }
+
+            if (data.compareAndSet(id, v, v - sz))
+                return;
+        }
+    }
+
+    /** Connect random pairs of nodes from several threads at once,
+     * and check the sets against UnionFindSimple. **/
+    public static void main(String args[]) throws InterruptedException
+    {
+        int nnodes = 100000;
+        int nedges = 80000;
+        int nthreads = 8;
+
+        Random r = new Random();
+
+        final int edges[][] = new int[nedges][];
+        for (int i = 0; i < nedges; i++)
+            edges[i] = new int[] { r.nextInt(nnodes), r.nextInt(nnodes) };
+
+        UnionFindSimple ufs = new UnionFindSimple(nnodes);
+        for (int i = 0; i < nedges; i++)
+            ufs.connectNodes(edges[i][0], edges[i][1]);
+
+        final UnionFindConcurrent ufc = new UnionFindConcurrent(nnodes);
+
+        Thread threads[] = new Thread[nthreads];
+        for (int t = 0; t < nthreads; t++) {
+            final int e0 = nedges * t / nthreads, e1 = nedges * (t+1) / nthreads;
+
+            threads[t] = new Thread() {
+                public void run()
+                {
+                    for (int i = e0; i < e1; i++)
+                        ufc.connectNodes(edges[i][0], edges[i][1]);
+                }
+            };
+            threads[t].start();
+        }
+
+        for (int t = 0; t < nthreads; t++)
+            threads[t].join();
+
+        // the sets match if each node's representative in one
+        // structure maps to a single representative in the other.
+        int map[] = new int[nnodes];
+        Arrays.fill(map, -1);
+
+        int errors = 0;
+        for (int a = 0; a < nnodes; a++) {
+            int rs = ufs.getRepresentative(a);
+            int rc = ufc.getRepresentative(a);
+
+            if (map[rs] < 0)
+                map[rs] = rc;
+
+            if (map[rs] != rc || ufs.getSetSize(a) != ufc.getSetSize(a))
+                errors++;
+        }
+
+        System.out.println(errors == 0 ? "OK" : "FAILED: "+errors+" nodes in the wrong set");
+    }
+}
@@ -3,7 +3,11 @@ package april.util;
 import java.util.*;
 
 /** Implementation of disjoint set data structure that packs each
- * entry into a single array of 'int' for performance. *
+ * entry into a single array of 'int' for performance.
+ *
+ * Not thread safe, except that threads may operate concurrently on
+ * sets that never share any nodes (e.g., the pixels of disjoint
+ * tiles of an image). See UnionFindConcurrent.
  */
 public final class UnionFindSimple
 {
@@ -42,17 +46,29 @@ public final class UnionFindSimple
 
     public int getRepresentative(int id)
     {
-        // terminal case: a node is its own parent.
-        if (data[SZ*id]==id)
-            return id;
-
-        // otherwise, recurse...
-        int root = getRepresentative(data[SZ*id]);
-
-        // short circuit the path.
-        data[SZ*id] = root;
+        // Iterative path halving: point every other node on the path
+        // at its grandparent as we go. (This used to be recursive,
+        // which could overflow the stack on very large clusters.)
+        // Only the shape of the tree changes, never the
+        // representative, so results do not depend on it.
+        while (true) {
+            int parent = data[SZ*id];
+            if (parent == id)
+                return id;
+
+            int grandparent = data[SZ*parent];
+            data[SZ*id] = grandparent;
+            id = grandparent;
+        }
+    }
 
-        return root;
+    /** Make id a set of its own again. This is only valid if every
+     * other member of its set is reset too, once they have all been
+     * looked up. **/
+    public void reset(int id)
+    {
+        data[SZ*id+0] = id;
+        data[SZ*id+1] = 1;
     }
 
     /** returns the id of the merged node. **/